@@ -114,24 +114,8 @@ public class AlbumDataAdapter extends ArrayAdapter<PhotoSource.AlbumData> {
             if (a.account == b.account) {
                 return recency.compare(a, b);
             } else {
-                String typeAString = a.getType();
-                String typeBString = b.getType();
-                int typeA = 1;
-                int typeB = 1;
-
-                if (typeAString.equals(LocalSource.class.getName())) {
-                    typeA = 0;
-                }
-                if (typeBString.equals(LocalSource.class.getName())) {
-                    typeB = 0;
-                }
-
-                if (typeAString.equals(StockSource.class.getName())) {
-                    typeA = 2;
-                }
-                if (typeBString.equals(StockSource.class.getName())) {
-                    typeB = 2;
-                }
+                int typeA = PhotoSourceRegistry.getOrder(a.getType());
+                int typeB = PhotoSourceRegistry.getOrder(b.getType());
 
                 if (typeA == typeB) {
                     return a.account.compareTo(b.account);
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import java.util.Random;
+
+/**
+ * Draws indices in proportion to a set of weights in constant time, using Vose's alias method.
+ */
+public class AliasSampler {
+    private final double[] mProbability;
+    private final int[] mAlias;
+
+    /** Weights must be non-negative. If they are all zero, every index is equally likely. */
+    public AliasSampler(double[] weights) {
+        final int n = weights.length;
+        mProbability = new double[n];
+        mAlias = new int[n];
+
+        double total = 0.0;
+        for (double weight : weights) {
+            total += Math.max(0.0, weight);
+        }
+
+        // scale so that the average weight is 1, then pair each short column with a long one.
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (total > 0.0 ? Math.max(0.0, weights[i]) * n / total : 1.0);
+            if (scaled[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+
+        while (numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[--numLarge];
+            mProbability[less] = scaled[less];
+            mAlias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[numSmall++] = more;
+            } else {
+                large[numLarge++] = more;
+            }
+        }
+
+        // whatever is left over is full, up to rounding error.
+        while (numLarge > 0) {
+            mProbability[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            mProbability[small[--numSmall]] = 1.0;
+        }
+    }
+
+    public int size() {
+        return mProbability.length;
+    }
+
+    /** Return an index with probability proportional to its weight. */
+    public int sample(Random rng) {
+        int column = rng.nextInt(mProbability.length);
+        return (rng.nextDouble() < mProbability[column] ? column : mAlias[column]);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A snapshot of the default network that is kept current by callbacks, so that reading it
+ * on the decode path costs no binder calls.
+ */
+public class ConnectivityMonitor {
+    private static final String TAG = "PhotoTable.ConnectivityMonitor";
+
+    public static final String TRANSPORT_NONE = "none";
+    public static final String TRANSPORT_WIFI = "wifi";
+    public static final String TRANSPORT_CELLULAR = "cellular";
+    public static final String TRANSPORT_ETHERNET = "ethernet";
+    public static final String TRANSPORT_OTHER = "other";
+
+    /** Told about every change to the snapshot, on a binder or main thread. */
+    public interface Listener {
+        void onConnectivityChanged(ConnectivityMonitor monitor);
+    }
+
+    private static ConnectivityMonitor sInstance;
+
+    private final ConnectivityManager mConnectivityManager;
+    // Listeners don't outlive the views that own them; nothing unregisters them.
+    private final ArrayList<WeakReference<Listener>> mListeners;
+    private volatile boolean mOnline;
+    private volatile boolean mMetered;
+    private volatile String mTransport;
+    private int mChanges;
+
+    public static synchronized ConnectivityMonitor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mListeners = new ArrayList<WeakReference<Listener>>();
+        mTransport = TRANSPORT_NONE;
+        readActiveNetwork();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mConnectivityManager.registerDefaultNetworkCallback(
+                    new ConnectivityManager.NetworkCallback() {
+                        @Override
+                        public void onCapabilitiesChanged(Network network,
+                                NetworkCapabilities capabilities) {
+                            update(true, readCapabilities(capabilities));
+                        }
+
+                        @Override
+                        public void onLost(Network network) {
+                            update(false, null);
+                        }
+                    });
+        } else {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    readActiveNetwork();
+                    notifyListeners();
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    private void readActiveNetwork() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        boolean online = (info != null && info.isConnected());
+        mOnline = online;
+        mMetered = online && mConnectivityManager.isActiveNetworkMetered();
+        if (!online) {
+            mTransport = TRANSPORT_NONE;
+        } else if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+            mTransport = TRANSPORT_WIFI;
+        } else if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            mTransport = TRANSPORT_CELLULAR;
+        } else if (info.getType() == ConnectivityManager.TYPE_ETHERNET) {
+            mTransport = TRANSPORT_ETHERNET;
+        } else {
+            mTransport = TRANSPORT_OTHER;
+        }
+    }
+
+    private String readCapabilities(NetworkCapabilities capabilities) {
+        mMetered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return TRANSPORT_WIFI;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return TRANSPORT_CELLULAR;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return TRANSPORT_ETHERNET;
+        }
+        return TRANSPORT_OTHER;
+    }
+
+    private void update(boolean online, String transport) {
+        boolean changed = (online != mOnline ||
+                !(online ? transport : TRANSPORT_NONE).equals(mTransport));
+        mOnline = online;
+        mTransport = (online ? transport : TRANSPORT_NONE);
+        if (!online) {
+            mMetered = false;
+        }
+        if (changed) {
+            PhotoSource.log(TAG, "network is now " + mTransport +
+                    (mMetered ? " (metered)" : ""));
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        ArrayList<Listener> listeners = new ArrayList<Listener>();
+        synchronized (mListeners) {
+            mChanges++;
+            Iterator<WeakReference<Listener>> i = mListeners.iterator();
+            while (i.hasNext()) {
+                Listener listener = i.next().get();
+                if (listener == null) {
+                    i.remove();
+                } else {
+                    listeners.add(listener);
+                }
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.onConnectivityChanged(this);
+        }
+    }
+
+    /** Listeners are held weakly, so the caller must keep a reference. */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(new WeakReference<Listener>(listener));
+        }
+    }
+
+    public boolean isOnline() {
+        return mOnline;
+    }
+
+    /** True if the default network bills by the byte; false when offline. */
+    public boolean isMetered() {
+        return mMetered;
+    }
+
+    /** One of the TRANSPORT constants. */
+    public String getTransport() {
+        return mTransport;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mListeners) {
+            pw.println(prefix + "network: " + mTransport + (mOnline ? " online" : " offline") +
+                    (mMetered ? " metered" : "") + " changes=" + mChanges);
+        }
+    }
+}
@@ -29,6 +29,56 @@ public abstract class CursorPhotoSource extends PhotoSource {
     // An invalid cursor position to represent the error state.
     protected static final int INVALID = -2;
 
+    /**
+     * Reads the columns of a fixed projection, resolving the column indices
+     * once per cursor instead of once per row.
+     */
+    protected static class RowReader {
+        private final String[] mProjection;
+        private final int[] mIndices;
+        private Cursor mCursor;
+
+        public RowReader(String[] projection) {
+            mProjection = projection;
+            mIndices = new int[projection.length];
+        }
+
+        public String[] getProjection() {
+            return mProjection;
+        }
+
+        /** Resolve the projection against a cursor, unless it is already bound to it. */
+        public RowReader bind(Cursor cursor) {
+            if (cursor != mCursor) {
+                mCursor = cursor;
+                for (int i = 0; i < mProjection.length; i++) {
+                    mIndices[i] = cursor.getColumnIndex(mProjection[i]);
+                }
+            }
+            return this;
+        }
+
+        public Cursor getCursor() {
+            return mCursor;
+        }
+
+        public boolean has(int column) {
+            return mIndices[column] >= 0;
+        }
+
+        public String getString(int column) {
+            return mIndices[column] >= 0 ? mCursor.getString(mIndices[column]) : null;
+        }
+
+        public int getInt(int column) {
+            return mIndices[column] >= 0 ? mCursor.getInt(mIndices[column]) : 0;
+        }
+
+        public long getLong(int column) {
+            return mIndices[column] >= 0 ? mCursor.getLong(mIndices[column]) : 0L;
+        }
+    }
+
     public CursorPhotoSource(Context context, SharedPreferences settings) {
         super(context, settings);
     }
@@ -42,13 +92,18 @@ public abstract class CursorPhotoSource extends PhotoSource {
         if (current.cursor == null || current.cursor.isClosed()) {
             openCursor(current);
         }
+        if (current.cursor == null) {
+            // the provider failed or missed its deadline.
+            return null;
+        }
         findPosition(current);
         current.cursor.moveToPosition(current.position);
         current.cursor.moveToNext();
         ImageData data = null;
         if (!current.cursor.isAfterLast()) {
-            data = unpackImageData(current.cursor, null);
+            data = unpackImageData(getRowReader(current), null);
             data.cursor = current.cursor;
+            data.reader = current.reader;
             data.uri = current.uri;
             data.position = current.cursor.getPosition();
         }
@@ -60,19 +115,32 @@ public abstract class CursorPhotoSource extends PhotoSource {
         if (current.cursor == null || current.cursor.isClosed()) {
             openCursor(current);
         }
+        if (current.cursor == null) {
+            // the provider failed or missed its deadline.
+            return null;
+        }
         findPosition(current);
         current.cursor.moveToPosition(current.position);
         current.cursor.moveToPrevious();
         ImageData data = null;
         if (!current.cursor.isBeforeFirst()) {
-            data = unpackImageData(current.cursor, null);
+            data = unpackImageData(getRowReader(current), null);
             data.cursor = current.cursor;
+            data.reader = current.reader;
             data.uri = current.uri;
             data.position = current.cursor.getPosition();
         }
         return data;
     }
 
+    /** The reader for this data's cursor, made once per cursor and passed along as it pages. */
+    protected RowReader getRowReader(ImageData data) {
+        if (data.reader == null || data.reader.getCursor() != data.cursor) {
+            data.reader = newRowReader().bind(data.cursor);
+        }
+        return data.reader;
+    }
+
     @Override
     protected void donePaging(ImageData current) {
         if (current.cursor != null && !current.cursor.isClosed()) {
@@ -82,6 +150,8 @@ public abstract class CursorPhotoSource extends PhotoSource {
 
     protected abstract void openCursor(ImageData data);
     protected abstract void findPosition(ImageData data);
-    protected abstract ImageData unpackImageData(Cursor cursor, ImageData data);
+    /** A reader for the projection used by findImages() and openCursor(). */
+    protected abstract RowReader newRowReader();
+    protected abstract ImageData unpackImageData(RowReader row, ImageData data);
 }
 
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.PrintWriter;
+import java.util.Calendar;
+
+/**
+ * Limits how many bytes a source may download per day on metered networks.
+ *
+ * The spent total resets at local midnight, and survives restarts of the dream.
+ */
+public class DataBudget {
+    private static final String TAG = "PhotoTable.DataBudget";
+    private static final String PREFS_NAME = "DataBudget";
+
+    private static final String KEY_DAY = "day";
+    private static final String KEY_SPENT_TODAY = "spent_today";
+    private static final String KEY_SPENT = "spent";
+    private static final String KEY_SAVED = "saved";
+
+    private final SharedPreferences mPrefs;
+    private final String mName;
+    private final long mDailyBytes;
+
+    public DataBudget(Context context, String name, long dailyBytes) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, 0);
+        mName = name;
+        mDailyBytes = dailyBytes;
+    }
+
+    private String key(String field) {
+        return mName + "_" + field;
+    }
+
+    private static int today() {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.YEAR) * 1000 + now.get(Calendar.DAY_OF_YEAR);
+    }
+
+    private synchronized long getSpentToday() {
+        if (mPrefs.getInt(key(KEY_DAY), 0) != today()) {
+            return 0L;
+        }
+        return mPrefs.getLong(key(KEY_SPENT_TODAY), 0L);
+    }
+
+    /** True if there is budget left today for another download. */
+    public boolean canSpend() {
+        return getRemaining() > 0L;
+    }
+
+    public synchronized long getRemaining() {
+        return Math.max(0L, mDailyBytes - getSpentToday());
+    }
+
+    /** Charge bytes downloaded over a metered network. */
+    public synchronized void spend(long bytes) {
+        if (bytes <= 0L) {
+            return;
+        }
+        long spentToday = getSpentToday() + bytes;
+        mPrefs.edit()
+                .putInt(key(KEY_DAY), today())
+                .putLong(key(KEY_SPENT_TODAY), spentToday)
+                .putLong(key(KEY_SPENT), mPrefs.getLong(key(KEY_SPENT), 0L) + bytes)
+                .apply();
+        PhotoSource.log(TAG, mName + " spent " + bytes + " bytes, " + spentToday + " today");
+    }
+
+    /** Credit bytes that were served from disk instead of a metered network. */
+    public synchronized void save(long bytes) {
+        if (bytes <= 0L) {
+            return;
+        }
+        mPrefs.edit()
+                .putLong(key(KEY_SAVED), mPrefs.getLong(key(KEY_SAVED), 0L) + bytes)
+                .apply();
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "metered budget: " + getSpentToday() + "/" + mDailyBytes +
+                " bytes today, spent=" + mPrefs.getLong(key(KEY_SPENT), 0L) +
+                " saved=" + mPrefs.getLong(key(KEY_SAVED), 0L) + " bytes");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes content provider calls that give up after a deadline.
+ *
+ * Each call runs on a worker thread with a CancellationSignal. If the deadline passes, the
+ * signal is cancelled, the caller gets null as if the provider had returned nothing, and
+ * whatever the provider eventually returns is closed.
+ */
+public class DeadlineResolver {
+    private static final String TAG = "PhotoTable.DeadlineResolver";
+
+    private static final int PENDING = 0;
+    private static final int DELIVERED = 1;
+    private static final int ABANDONED = 2;
+
+    private interface Call<T> {
+        T run(CancellationSignal signal) throws IOException;
+    }
+
+    private final ContentResolver mResolver;
+    private final long mDeadline;
+    private final AtomicInteger mExpired;
+
+    public DeadlineResolver(ContentResolver resolver, long deadline) {
+        mResolver = resolver;
+        mDeadline = deadline;
+        mExpired = new AtomicInteger();
+    }
+
+    /** The underlying resolver, for calls that can't be cancelled. */
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    /** Number of calls that were abandoned because they missed the deadline. */
+    public int getExpiredCount() {
+        return mExpired.get();
+    }
+
+    public Cursor query(final Uri uri, final String[] projection, final String selection,
+            final String[] selectionArgs, final String sortOrder) {
+        try {
+            return call(uri, new Call<Cursor>() {
+                @Override
+                public Cursor run(CancellationSignal signal) {
+                    return mResolver.query(uri, projection, selection, selectionArgs,
+                            sortOrder, signal);
+                }
+            });
+        } catch (IOException ioe) {
+            // queries don't throw checked exceptions.
+            return null;
+        }
+    }
+
+    public InputStream openInputStream(final Uri uri) throws FileNotFoundException {
+        try {
+            return call(uri, new Call<InputStream>() {
+                @Override
+                public InputStream run(CancellationSignal signal) throws IOException {
+                    AssetFileDescriptor afd = mResolver.openAssetFileDescriptor(uri, "r", signal);
+                    return (afd == null ? null : afd.createInputStream());
+                }
+            });
+        } catch (FileNotFoundException fnf) {
+            throw fnf;
+        } catch (IOException ioe) {
+            throw new FileNotFoundException(ioe.toString());
+        }
+    }
+
+    public Bitmap loadThumbnail(final Uri uri, final Size size) throws IOException {
+        return call(uri, new Call<Bitmap>() {
+            @Override
+            public Bitmap run(CancellationSignal signal) throws IOException {
+                return mResolver.loadThumbnail(uri, size, signal);
+            }
+        });
+    }
+
+    private <T> T call(Uri uri, final Call<T> call) throws IOException {
+        final CancellationSignal signal = new CancellationSignal();
+        // the worker and the caller race to settle the call: if the worker gets there first
+        // the caller takes the result, however late; otherwise the worker releases it.
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        final AtomicReference<T> finished = new AtomicReference<T>();
+        Future<T> future = PhotoSource.getWorkers().submit(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                T result = call.run(signal);
+                finished.set(result);
+                if (!state.compareAndSet(PENDING, DELIVERED)) {
+                    release(result);
+                    return null;
+                }
+                return result;
+            }
+        });
+
+        try {
+            return future.get(mDeadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            if (state.compareAndSet(PENDING, ABANDONED)) {
+                Log.w(TAG, "abandoning provider call after " + mDeadline + "ms: " + uri);
+                mExpired.incrementAndGet();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            state.compareAndSet(PENDING, ABANDONED);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof OperationCanceledException) {
+                return null;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+
+        if (state.get() == DELIVERED) {
+            // it finished just as we gave up, so the result is ours after all.
+            return finished.get();
+        }
+        signal.cancel();
+        future.cancel(true);
+        return null;
+    }
+
+    private static void release(Object result) {
+        try {
+            if (result instanceof Cursor) {
+                ((Cursor) result).close();
+            } else if (result instanceof Closeable) {
+                ((Closeable) result).close();
+            } else if (result instanceof Bitmap) {
+                ((Bitmap) result).recycle();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed to release abandoned result: " + ioe);
+        }
+    }
+}
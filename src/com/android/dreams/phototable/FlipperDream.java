@@ -17,6 +17,9 @@ package com.android.dreams.phototable;
 
 import android.service.dreams.DreamService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Example interactive screen saver: single photo with flipping.
  */
@@ -42,4 +45,13 @@ public class FlipperDream extends DreamService {
 
         setFullscreen(true);
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        PhotoCarousel carousel = (PhotoCarousel) findViewById(R.id.carousel);
+        if (carousel != null) {
+            carousel.dump(pw, "  ");
+        }
+    }
 }
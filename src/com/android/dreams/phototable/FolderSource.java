@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads images from configured directories on the device, whether or not the media
+ * scanner knows about them. Each directory that holds photos is an album.
+ *
+ * The tree is walked once in the background, one level at a time with every directory of a
+ * level listed in parallel; until the walk is done, photos come from the folders found so
+ * far. After that the index is kept current by a FileObserver per directory, and is
+ * saved so that the next start only re-lists directories that changed while we were away.
+ */
+public class FolderSource extends PhotoSource {
+    private static final String TAG = "PhotoTable.FolderSource";
+
+    private static final String INDEX_FILE = "folder_index";
+    private static final int INDEX_VERSION = 1;
+    private static final String[] IMAGE_EXTENSIONS =
+            { ".jpg", ".jpeg", ".png", ".webp", ".gif", ".bmp", ".heic" };
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.MOVED_TO |
+            FileObserver.CLOSE_WRITE | FileObserver.DELETE | FileObserver.MOVED_FROM |
+            FileObserver.DELETE_SELF;
+
+    /** One directory in the tree, and the photos directly inside it. */
+    private class Folder {
+        final String path;
+        final ArrayList<String> names = new ArrayList<String>();
+        long modified;
+        FileObserver observer;
+
+        Folder(String path) {
+            this.path = path;
+        }
+    }
+
+    private final String[] mRoots;
+    private final File mIndexFile;
+    private final HashMap<String, Folder> mFolders;
+    private final AtomicBoolean mSavePending;
+    private final AtomicBoolean mIndexing;
+    private volatile boolean mIndexed;
+    private int mEvents;
+
+    public FolderSource(Context context, SharedPreferences settings) {
+        super(context, settings);
+        mSourceName = TAG;
+        mRoots = mResources.getStringArray(R.array.photo_folders);
+        mIndexFile = new File(context.getFilesDir(), INDEX_FILE);
+        mFolders = new HashMap<String, Folder>();
+        mSavePending = new AtomicBoolean();
+        mIndexing = new AtomicBoolean();
+    }
+
+    public static String constructId(String path) {
+        return TAG + ":" + path;
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Start building the index on the workers, unless it is built or being built. */
+    private void ensureIndexed() {
+        if (!mIndexed && mIndexing.compareAndSet(false, true)) {
+            getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        index();
+                    } finally {
+                        mIndexing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private void index() {
+        long start = System.currentTimeMillis();
+        ArrayList<String> stale = new ArrayList<String>();
+        HashSet<String> saved = new HashSet<String>();
+        readIndex(stale, saved);
+        // roots added since the index was written, or never reached by the walk that wrote it.
+        for (String root : mRoots) {
+            String path = new File(root).getAbsolutePath();
+            if (!saved.contains(path)) {
+                stale.add(path);
+            }
+        }
+        if (!walk(stale)) {
+            // try again on the next request, and don't save a partial index as complete.
+            log(TAG, "folder walk was interrupted");
+            return;
+        }
+        synchronized (mFolders) {
+            for (Folder folder : mFolders.values()) {
+                if (folder.observer == null) {
+                    watch(folder);
+                }
+            }
+            log(TAG, "indexed " + mFolders.size() + " folders in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+        mIndexed = true;
+        scheduleSave();
+    }
+
+    /**
+     * List the given directories and everything under them, one level at a time with the
+     * directories of each level listed in parallel. Returns false if it was interrupted.
+     */
+    private boolean walk(List<String> paths) {
+        List<String> level = paths;
+        while (!level.isEmpty()) {
+            ArrayList<Callable<List<String>>> tasks =
+                    new ArrayList<Callable<List<String>>>(level.size());
+            for (final String path : level) {
+                tasks.add(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return list(path);
+                    }
+                });
+            }
+            ArrayList<String> next = new ArrayList<String>();
+            try {
+                for (Future<List<String>> future : getWorkers().invokeAll(tasks)) {
+                    try {
+                        next.addAll(future.get());
+                    } catch (ExecutionException ee) {
+                        Log.w(TAG, "failed to list a folder: " + ee.getCause());
+                        reportError();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            level = next;
+        }
+        return true;
+    }
+
+    /** Index the photos directly in one directory, and return its subdirectories. */
+    private List<String> list(String path) {
+        ArrayList<String> subdirectories = new ArrayList<String>();
+        File directory = new File(path);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            log(TAG, "can't list " + path);
+            return subdirectories;
+        }
+        Folder folder = new Folder(path);
+        folder.modified = directory.lastModified();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.isHidden()) {
+                    subdirectories.add(file.getAbsolutePath());
+                }
+            } else if (isImage(file.getName())) {
+                folder.names.add(file.getName());
+            }
+        }
+        Collections.sort(folder.names);
+        synchronized (mFolders) {
+            Folder old = mFolders.put(path, folder);
+            if (old != null && old.observer != null) {
+                old.observer.stopWatching();
+            }
+        }
+        return subdirectories;
+    }
+
+    private void watch(final Folder folder) {
+        folder.observer = new FileObserver(folder.path, EVENTS) {
+            @Override
+            public void onEvent(int event, String name) {
+                onFolderEvent(folder, event & FileObserver.ALL_EVENTS, name);
+            }
+        };
+        folder.observer.startWatching();
+    }
+
+    private void onFolderEvent(Folder folder, int event, String name) {
+        File file = (name == null ? null : new File(folder.path, name));
+        boolean changed = false;
+        synchronized (mFolders) {
+            mEvents++;
+            if (event == FileObserver.DELETE_SELF) {
+                mFolders.remove(folder.path);
+                folder.observer.stopWatching();
+                changed = true;
+            } else if (file != null && isImage(name)) {
+                int index = Collections.binarySearch(folder.names, name);
+                boolean present = (event != FileObserver.DELETE &&
+                        event != FileObserver.MOVED_FROM);
+                if (present && index < 0) {
+                    folder.names.add(-index - 1, name);
+                    changed = true;
+                } else if (!present && index >= 0) {
+                    folder.names.remove(index);
+                    changed = true;
+                }
+            }
+            folder.modified = new File(folder.path).lastModified();
+        }
+        if (file != null && (event == FileObserver.CREATE || event == FileObserver.MOVED_TO) &&
+                file.isDirectory()) {
+            // a new subtree: index it and watch everything in it.
+            final String path = file.getAbsolutePath();
+            getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    LinkedList<String> paths = new LinkedList<String>();
+                    paths.add(path);
+                    if (!walk(paths)) {
+                        return;
+                    }
+                    synchronized (mFolders) {
+                        for (Folder added : mFolders.values()) {
+                            if (added.observer == null) {
+                                watch(added);
+                            }
+                        }
+                    }
+                    scheduleSave();
+                }
+            });
+        }
+        if (changed) {
+            log(TAG, "updated " + folder.path + " for " + name);
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Load the saved index. Folders that changed since it was written are added to stale
+     * instead, so that only they are listed again. Every folder the index names is added
+     * to saved.
+     */
+    private boolean readIndex(List<String> stale, Set<String> saved) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mIndexFile));
+            if (!Integer.toString(INDEX_VERSION).equals(reader.readLine())) {
+                return false;
+            }
+            Folder folder = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("/")) {
+                    int split = line.lastIndexOf('\t');
+                    String path = line.substring(0, split);
+                    File directory = new File(path);
+                    long modified = Long.parseLong(line.substring(split + 1));
+                    saved.add(path);
+                    if (directory.lastModified() != modified) {
+                        stale.add(path);
+                        folder = null;
+                    } else {
+                        folder = new Folder(path);
+                        folder.modified = modified;
+                        synchronized (mFolders) {
+                            mFolders.put(path, folder);
+                        }
+                    }
+                } else if (folder != null) {
+                    folder.names.add(line.substring(1));
+                }
+            }
+            log(TAG, "loaded the folder index, " + stale.size() + " folders are stale");
+            return true;
+        } catch (FileNotFoundException fnf) {
+            return false;
+        } catch (IOException ioe) {
+            Log.w(TAG, "can't read the folder index: " + ioe);
+        } catch (NumberFormatException nfe) {
+            Log.w(TAG, "corrupt folder index");
+        } catch (IndexOutOfBoundsException ioobe) {
+            Log.w(TAG, "corrupt folder index");
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+        synchronized (mFolders) {
+            mFolders.clear();
+        }
+        stale.clear();
+        saved.clear();
+        return false;
+    }
+
+    /** Save the index in the background, coalescing bursts of file events. */
+    private void scheduleSave() {
+        if (mSavePending.compareAndSet(false, true)) {
+            getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSavePending.set(false);
+                    writeIndex();
+                }
+            });
+        }
+    }
+
+    private void writeIndex() {
+        StringBuilder index = new StringBuilder();
+        index.append(INDEX_VERSION).append('\n');
+        synchronized (mFolders) {
+            for (Folder folder : mFolders.values()) {
+                index.append(folder.path).append('\t').append(folder.modified).append('\n');
+                for (String name : folder.names) {
+                    index.append('\t').append(name).append('\n');
+                }
+            }
+        }
+        File temp = new File(mIndexFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(temp));
+            writer.write(index.toString());
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mIndexFile)) {
+                Log.w(TAG, "can't replace the folder index");
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "can't write the folder index: " + ioe);
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+    }
+
+    @Override
+    public Collection<AlbumData> findAlbums() {
+        log(TAG, "finding albums");
+        ensureIndexed();
+        ArrayList<AlbumData> foundAlbums = new ArrayList<AlbumData>();
+        synchronized (mFolders) {
+            for (Folder folder : mFolders.values()) {
+                if (!folder.names.isEmpty()) {
+                    AlbumData data = new AlbumData();
+                    File directory = new File(folder.path);
+                    data.id = constructId(folder.path);
+                    data.title = directory.getName();
+                    data.account = directory.getParent();
+                    data.updated = folder.modified;
+                    foundAlbums.add(data);
+                }
+            }
+        }
+        log(TAG, "found " + foundAlbums.size() + " items.");
+        return foundAlbums;
+    }
+
+    @Override
+    protected Collection<ImageData> findImages(int howMany) {
+        log(TAG, "finding images");
+        ensureIndexed();
+        ArrayList<ImageData> foundImages = new ArrayList<ImageData>();
+        synchronized (mFolders) {
+            for (Folder folder : mFolders.values()) {
+                if (mSettings.isAlbumEnabled(constructId(folder.path))) {
+                    for (int i = 0; i < folder.names.size(); i++) {
+                        foundImages.add(newImageData(folder, i));
+                    }
+                }
+            }
+        }
+        mCatalogSize = foundImages.size();
+        Collections.shuffle(foundImages, mRNG);
+        if (foundImages.size() > howMany) {
+            foundImages.subList(howMany, foundImages.size()).clear();
+        }
+        log(TAG, "found " + foundImages.size() + " items.");
+        return foundImages;
+    }
+
+    private ImageData newImageData(Folder folder, int position) {
+        ImageData data = new ImageData();
+        data.albumId = folder.path;
+        data.position = position;
+        data.url = new File(folder.path, folder.names.get(position)).getPath();
+        data.id = data.url;
+        return data;
+    }
+
+    @Override
+    protected InputStream getStream(ImageData data, int longSide) {
+        FileInputStream fis = null;
+        try {
+            log(TAG, "opening:" + data.url);
+            fis = new FileInputStream(data.url);
+        } catch (Exception ex) {
+            log(TAG, ex.toString());
+            fis = null;
+        }
+        return fis;
+    }
+
+    private ImageData step(ImageData current, int direction) {
+        synchronized (mFolders) {
+            Folder folder = mFolders.get(current.albumId);
+            if (folder == null || folder.names.isEmpty()) {
+                return null;
+            }
+            // the folder may have changed since this image was found.
+            String name = new File(current.url).getName();
+            int position = Collections.binarySearch(folder.names, name);
+            if (position < 0) {
+                position = -position - 1 - (direction > 0 ? 1 : 0);
+            }
+            int size = folder.names.size();
+            return newImageData(folder, (position + direction + size) % size);
+        }
+    }
+
+    @Override
+    protected ImageData naturalNext(ImageData current) {
+        return step(current, 1);
+    }
+
+    @Override
+    protected ImageData naturalPrevious(ImageData current) {
+        return step(current, -1);
+    }
+
+    @Override
+    protected void donePaging(ImageData current) {
+    }
+
+    @Override
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mFolders) {
+            int photos = 0;
+            for (Folder folder : mFolders.values()) {
+                photos += folder.names.size();
+            }
+            pw.println(prefix + "folders=" + mFolders.size() + " photos=" + photos +
+                    " file events=" + mEvents);
+        }
+    }
+}
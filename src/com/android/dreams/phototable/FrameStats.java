@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import java.io.PrintWriter;
+
+/**
+ * Frame times while animations run, by kind of animation.
+ *
+ * Animations announce themselves with their duration; while any is running a frame
+ * callback measures the gap between frames and files it under every running kind, by how
+ * many vsyncs it took. Frames that follow a decoded photo landing are counted separately,
+ * to see whether decodes are what makes the animations stutter. UI thread only.
+ */
+public class FrameStats implements Choreographer.FrameCallback {
+    private static final String TAG = "FrameStats";
+    private static final boolean DEBUG = false;
+
+    public static final int THROW = 0;
+    public static final int DROP = 1;
+    public static final int PICK_UP = 2;
+    public static final int ON_DECK = 3;
+    public static final int FADE_AWAY = 4;
+    public static final int FLIP = 5;
+    private static final String[] NAMES =
+            { "throw", "drop", "pick up", "on deck", "fade away", "flip" };
+
+    /** Frames taking 1, 2, 3, 4 and 5 or more vsyncs. */
+    private static final int BUCKETS = 5;
+
+    private final long mFrameIntervalNanos;
+    private final long[] mRunningUntil;
+    private final int[][] mHistogram;
+    private final int[] mDroppedByKind;
+    private final int[] mAfterDecode;
+    private final int[] mJankAfterDecode;
+    private Choreographer mChoreographer;
+    private boolean mScheduled;
+    private long mLastFrameNanos;
+    private long mLastDecodeNanos;
+    private int mDecodes;
+    private int mFrames;
+    private int mDropped;
+
+    public FrameStats(Context context) {
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = wm.getDefaultDisplay().getRefreshRate();
+        if (refreshRate < 1f) {
+            refreshRate = 60f;
+        }
+        mFrameIntervalNanos = (long) (1000000000L / refreshRate);
+        mRunningUntil = new long[NAMES.length];
+        mHistogram = new int[NAMES.length][BUCKETS];
+        mDroppedByKind = new int[NAMES.length];
+        mAfterDecode = new int[NAMES.length];
+        mJankAfterDecode = new int[NAMES.length];
+    }
+
+    /** An animation of this kind starts now and runs for the given time. */
+    public void begin(int kind, long durationMillis) {
+        long until = SystemClock.uptimeMillis() + durationMillis;
+        mRunningUntil[kind] = Math.max(mRunningUntil[kind], until);
+        if (!mScheduled) {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mScheduled = true;
+            mLastFrameNanos = 0L;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /** A freshly decoded photo has just been handed to the views. */
+    public void noteDecode() {
+        mLastDecodeNanos = System.nanoTime();
+        mDecodes++;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFrameNanos != 0L) {
+            long elapsed = frameTimeNanos - mLastFrameNanos;
+            int vsyncs = (int) Math.max(1L,
+                    (elapsed + mFrameIntervalNanos / 2) / mFrameIntervalNanos);
+            boolean afterDecode = mLastDecodeNanos > mLastFrameNanos;
+            mFrames++;
+            mDropped += vsyncs - 1;
+            for (int kind = 0; kind < NAMES.length; kind++) {
+                if (mRunningUntil[kind] >= now) {
+                    mHistogram[kind][Math.min(vsyncs, BUCKETS) - 1]++;
+                    mDroppedByKind[kind] += vsyncs - 1;
+                    if (afterDecode) {
+                        mAfterDecode[kind]++;
+                        if (vsyncs > 1) {
+                            mJankAfterDecode[kind]++;
+                        }
+                    }
+                }
+            }
+            if (DEBUG && vsyncs > 1) {
+                Log.i(TAG, "missed " + (vsyncs - 1) + " frames" +
+                        (afterDecode ? " after a decode" : ""));
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        boolean running = false;
+        for (int kind = 0; kind < NAMES.length; kind++) {
+            running |= (mRunningUntil[kind] >= now);
+        }
+        if (running) {
+            mChoreographer.postFrameCallback(this);
+        } else {
+            mScheduled = false;
+        }
+    }
+
+    /** Frames drawn while any animation was running. */
+    public int getFrames() {
+        return mFrames;
+    }
+
+    /** Frames missed while any animation was running. */
+    public int getDropped() {
+        return mDropped;
+    }
+
+    private int getFrames(int kind) {
+        int frames = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            frames += mHistogram[kind][bucket];
+        }
+        return frames;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "FrameStats: interval=" + (mFrameIntervalNanos / 1000) + "us" +
+                " frames=" + mFrames + " dropped=" + mDropped + " decodes=" + mDecodes);
+        for (int kind = 0; kind < NAMES.length; kind++) {
+            int frames = getFrames(kind);
+            if (frames == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            line.append(prefix).append("  ").append(NAMES[kind])
+                    .append(": frames=").append(frames)
+                    .append(" dropped=").append(mDroppedByKind[kind])
+                    .append(" vsyncs [");
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                line.append(bucket == 0 ? "" : " ")
+                        .append(bucket + 1).append(bucket == BUCKETS - 1 ? "+:" : ":")
+                        .append(mHistogram[kind][bucket]);
+            }
+            line.append("] janky after decode=").append(mJankAfterDecode[kind])
+                    .append("/").append(mAfterDecode[kind]);
+            pw.println(line.toString());
+        }
+    }
+}
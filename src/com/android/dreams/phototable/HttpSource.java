@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads images from directory listings on a web or WebDAV server.
+ *
+ * The base URL and each directory under it that holds photos are albums. Photos are
+ * downloaded whole into a disk cache and decoded from there. A download that is cut off
+ * is resumed with a Range request, and cached photos are revalidated with ETag and
+ * Last-Modified before reuse. Upcoming photos are fetched concurrently ahead of time.
+ */
+public class HttpSource extends PhotoSource {
+    private static final String TAG = "PhotoTable.HttpSource";
+
+    private static final String VALIDATORS_NAME = "HttpValidators";
+    private static final String PARTIAL_DIRECTORY = "http-partial";
+    private static final Pattern HREF = Pattern.compile("href\\s*=\\s*\"([^\"?#]+)\"",
+            Pattern.CASE_INSENSITIVE);
+    private static final String[] IMAGE_EXTENSIONS =
+            { ".jpg", ".jpeg", ".png", ".webp", ".gif", ".bmp" };
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /** The photos in one directory, as of the last listing. */
+    private static class Listing {
+        final ArrayList<String> photos = new ArrayList<String>();
+        final ArrayList<String> directories = new ArrayList<String>();
+        long listedAt;
+    }
+
+    private final String mBaseUrl;
+    private final int mTimeout;
+    private final long mListingTimeToLive;
+    private final long mRevalidatePeriod;
+    private final PhotoCache mCache;
+    private final File mPartialDirectory;
+    private final SharedPreferences mValidators;
+    private final HashMap<String, Listing> mListings;
+    private final ConcurrentHashMap<String, Object> mFetchLocks;
+    private final ConcurrentHashMap<String, Long> mValidatedAt;
+    private final HashSet<String> mPrefetching;
+    private final Semaphore mConnections;
+    private final AtomicLong mDownloaded;
+    private final AtomicLong mResumed;
+    private final AtomicLong mNotModified;
+    private volatile boolean mOffline;
+
+    public HttpSource(Context context, SharedPreferences settings) {
+        super(context, settings);
+        mSourceName = TAG;
+        String baseUrl = mResources.getString(R.string.http_source_url);
+        mBaseUrl = (baseUrl.length() == 0 || baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+        mTimeout = mResources.getInteger(R.integer.http_source_timeout);
+        mListingTimeToLive = mResources.getInteger(R.integer.http_listing_ttl);
+        mRevalidatePeriod = mResources.getInteger(R.integer.http_revalidate_period);
+        mCache = new PhotoCache(context, "http", mResources.getInteger(R.integer.http_cache_size));
+        mPartialDirectory = new File(context.getCacheDir(), PARTIAL_DIRECTORY);
+        mValidators = context.getSharedPreferences(VALIDATORS_NAME, 0);
+        mListings = new HashMap<String, Listing>();
+        mFetchLocks = new ConcurrentHashMap<String, Object>();
+        mValidatedAt = new ConcurrentHashMap<String, Long>();
+        mPrefetching = new HashSet<String>();
+        mConnections = new Semaphore(mResources.getInteger(R.integer.http_source_connections));
+        mDownloaded = new AtomicLong();
+        mResumed = new AtomicLong();
+        mNotModified = new AtomicLong();
+        mOffline = !ConnectivityMonitor.getInstance(context).isOnline();
+    }
+
+    public static String constructId(String url) {
+        return TAG + ":" + url;
+    }
+
+    private static boolean isImage(String url) {
+        String lower = url.toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private HttpURLConnection connect(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mTimeout);
+        connection.setReadTimeout(mTimeout);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /** Read a response to the end, so that its connection goes back to the pool. */
+    private static void finish(HttpURLConnection connection) {
+        InputStream is = null;
+        try {
+            is = (connection.getResponseCode() >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream());
+            if (is != null) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                while (is.read(buffer) != -1) {
+                    // discard.
+                }
+            }
+        } catch (IOException ioe) {
+            connection.disconnect();
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+    }
+
+    /**
+     * List a directory from its index page, using the cached listing while it is fresh, or
+     * however old it is while offline. Links outside the directory, such as the parent,
+     * are ignored.
+     */
+    private Listing list(String directory) {
+        synchronized (mListings) {
+            Listing cached = mListings.get(directory);
+            if (cached != null && (mOffline ||
+                    SystemClock.elapsedRealtime() - cached.listedAt < mListingTimeToLive)) {
+                return cached;
+            }
+        }
+        if (mOffline) {
+            // not the server's fault, so don't report an error.
+            return null;
+        }
+        Listing listing = new Listing();
+        HttpURLConnection connection = null;
+        InputStream is = null;
+        try {
+            connection = connect(directory);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "listing " + directory + " failed: " + connection.getResponseCode());
+                finish(connection);
+                reportError();
+                return null;
+            }
+            is = connection.getInputStream();
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                page.write(buffer, 0, count);
+            }
+            URL base = new URL(directory);
+            HashSet<String> seen = new HashSet<String>();
+            Matcher matcher = HREF.matcher(page.toString("UTF-8"));
+            while (matcher.find()) {
+                String url;
+                try {
+                    url = new URL(base, matcher.group(1)).toString();
+                } catch (MalformedURLException mue) {
+                    continue;
+                }
+                if (url.startsWith(directory) && !url.equals(directory) && seen.add(url)) {
+                    if (url.endsWith("/")) {
+                        listing.directories.add(url);
+                    } else if (isImage(url)) {
+                        listing.photos.add(url);
+                    }
+                }
+            }
+            Collections.sort(listing.photos);
+        } catch (IOException ioe) {
+            Log.w(TAG, "listing " + directory + " failed: " + ioe);
+            reportError();
+            return null;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+        listing.listedAt = SystemClock.elapsedRealtime();
+        synchronized (mListings) {
+            mListings.put(directory, listing);
+        }
+        return listing;
+    }
+
+    /** The base directory and its immediate subdirectories. */
+    private List<String> getAlbumUrls() {
+        ArrayList<String> albums = new ArrayList<String>();
+        if (mBaseUrl.length() == 0) {
+            return albums;
+        }
+        albums.add(mBaseUrl);
+        Listing root = list(mBaseUrl);
+        if (root != null) {
+            albums.addAll(root.directories);
+        }
+        return albums;
+    }
+
+    @Override
+    public Collection<AlbumData> findAlbums() {
+        log(TAG, "finding albums");
+        ArrayList<AlbumData> foundAlbums = new ArrayList<AlbumData>();
+        if (mOffline) {
+            return foundAlbums;
+        }
+        for (String url : getAlbumUrls()) {
+            Listing listing = list(url);
+            if (listing != null && !listing.photos.isEmpty()) {
+                AlbumData data = new AlbumData();
+                data.id = constructId(url);
+                String path = Uri.parse(url).getPath();
+                data.title = (url.equals(mBaseUrl) || path == null ?
+                        Uri.parse(url).getHost() :
+                        Uri.decode(new File(path).getName()));
+                data.account = Uri.parse(mBaseUrl).getHost();
+                data.thumbnailUrl = listing.photos.get(0);
+                foundAlbums.add(data);
+            }
+        }
+        log(TAG, "found " + foundAlbums.size() + " items.");
+        return foundAlbums;
+    }
+
+    @Override
+    protected Collection<ImageData> findImages(int howMany) {
+        log(TAG, "finding images");
+        ArrayList<ImageData> foundImages = new ArrayList<ImageData>();
+        // offline, only the photos already on disk from the last listings can be shown.
+        final boolean offline = mOffline;
+        for (String album : getAlbumUrls()) {
+            if (mSettings.isAlbumEnabled(constructId(album))) {
+                Listing listing = list(album);
+                if (listing != null) {
+                    for (int i = 0; i < listing.photos.size(); i++) {
+                        ImageData data = newImageData(album, listing, i);
+                        if (!offline || mCache.contains(getCacheKey(data))) {
+                            foundImages.add(data);
+                        }
+                    }
+                }
+            }
+        }
+        mCatalogSize = foundImages.size();
+        Collections.shuffle(foundImages, mRNG);
+        if (foundImages.size() > howMany) {
+            foundImages.subList(howMany, foundImages.size()).clear();
+        }
+        log(TAG, "found " + foundImages.size() + " items.");
+        return foundImages;
+    }
+
+    private ImageData newImageData(String album, Listing listing, int position) {
+        ImageData data = new ImageData();
+        data.albumId = album;
+        data.position = position;
+        data.url = listing.photos.get(position);
+        data.id = data.url;
+        return data;
+    }
+
+    private static String getCacheKey(ImageData data) {
+        return Integer.toHexString(data.url.hashCode()) + "_" +
+                Uri.decode(Uri.parse(data.url).getLastPathSegment());
+    }
+
+    /**
+     * Make sure the photo is in the cache and current. A cached copy is revalidated at most
+     * once per revalidate period; a partial download is resumed where it stopped.
+     */
+    private boolean fetch(ImageData data) {
+        String key = getCacheKey(data);
+        Object lock = mFetchLocks.putIfAbsent(key, new Object());
+        if (lock == null) {
+            lock = mFetchLocks.get(key);
+        }
+        synchronized (lock) {
+            boolean cached = mCache.contains(key);
+            Long validatedAt = mValidatedAt.get(key);
+            long now = SystemClock.elapsedRealtime();
+            if (cached && (mOffline ||
+                    (validatedAt != null && now - validatedAt < mRevalidatePeriod))) {
+                return true;
+            }
+            if (mOffline) {
+                return false;
+            }
+            boolean acquired = false;
+            try {
+                mConnections.acquire();
+                acquired = true;
+                boolean fetched = download(data.url, key, cached);
+                if (fetched) {
+                    mValidatedAt.put(key, now);
+                }
+                return fetched || cached;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return cached;
+            } finally {
+                if (acquired) {
+                    mConnections.release();
+                }
+            }
+        }
+    }
+
+    private boolean download(String url, String key, boolean cached) {
+        String etag = mValidators.getString(key + ".etag", null);
+        String lastModified = mValidators.getString(key + ".modified", null);
+        if (!mPartialDirectory.isDirectory()) {
+            mPartialDirectory.mkdirs();
+        }
+        File partial = new File(mPartialDirectory, key);
+        long offset = (cached ? 0L : partial.length());
+
+        HttpURLConnection connection = null;
+        InputStream is = null;
+        FileOutputStream out = null;
+        try {
+            connection = connect(url);
+            if (cached) {
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            } else if (offset > 0L && (etag != null || lastModified != null)) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", etag != null ? etag : lastModified);
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mNotModified.incrementAndGet();
+                finish(connection);
+                return true;
+            }
+            boolean resuming = (code == HttpURLConnection.HTTP_PARTIAL);
+            if (code != HttpURLConnection.HTTP_OK && !resuming) {
+                Log.w(TAG, "fetching " + url + " failed: " + code);
+                finish(connection);
+                return false;
+            }
+
+            SharedPreferences.Editor validators = mValidators.edit();
+            putOrRemove(validators, key + ".etag", connection.getHeaderField("ETag"));
+            putOrRemove(validators, key + ".modified", connection.getHeaderField("Last-Modified"));
+            validators.apply();
+
+            is = connection.getInputStream();
+            out = new FileOutputStream(partial, resuming);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long count = 0L;
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                count += n;
+            }
+            out.close();
+            out = null;
+            mDownloaded.addAndGet(count);
+            if (resuming) {
+                mResumed.incrementAndGet();
+                log(TAG, "resumed " + url + " at " + offset);
+            }
+            // the partial file is kept on failure, so that the next attempt can resume.
+            return mCache.commit(key, partial);
+        } catch (IOException ioe) {
+            Log.w(TAG, "fetching " + url + " failed: " + ioe);
+            return false;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    @Override
+    protected void prefetch(final ImageData data) {
+        if (data.url == null || mOffline) {
+            return;
+        }
+        final String key = getCacheKey(data);
+        synchronized (mPrefetching) {
+            if (!mPrefetching.add(key)) {
+                return;
+            }
+        }
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetch(data);
+                } finally {
+                    synchronized (mPrefetching) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onConnectivityChanged(ConnectivityMonitor connectivity) {
+        mOffline = !connectivity.isOnline();
+    }
+
+    @Override
+    protected InputStream getStream(ImageData data, int longSide) {
+        if (data.url == null || !fetch(data)) {
+            return null;
+        }
+        return mCache.open(getCacheKey(data));
+    }
+
+    private ImageData step(ImageData current, int direction) {
+        Listing listing = list(current.albumId);
+        if (listing == null || listing.photos.isEmpty()) {
+            return null;
+        }
+        // the listing may have changed since this image was found.
+        int position = Collections.binarySearch(listing.photos, current.url);
+        if (position < 0) {
+            position = -position - 1 - (direction > 0 ? 1 : 0);
+        }
+        int size = listing.photos.size();
+        return newImageData(current.albumId, listing, (position + direction + size) % size);
+    }
+
+    @Override
+    protected ImageData naturalNext(ImageData current) {
+        return step(current, 1);
+    }
+
+    @Override
+    protected ImageData naturalPrevious(ImageData current) {
+        return step(current, -1);
+    }
+
+    @Override
+    protected void donePaging(ImageData current) {
+    }
+
+    @Override
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "server=" + mBaseUrl + " downloaded=" + mDownloaded.get() +
+                " bytes, resumed=" + mResumed.get() + " not modified=" + mNotModified.get());
+        mCache.dump(pw, prefix);
+    }
+}
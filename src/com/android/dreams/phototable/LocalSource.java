@@ -15,18 +15,29 @@
  */
 package com.android.dreams.phototable;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
+import android.util.Size;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Loads images from the local store.
@@ -34,46 +45,169 @@ import java.util.Set;
 public class LocalSource extends CursorPhotoSource {
     private static final String TAG = "PhotoTable.LocalSource";
 
+    private static final String[] IMAGE_PROJECTION = {MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATA, MediaStore.Images.Media.ORIENTATION,
+            MediaStore.Images.Media.BUCKET_ID};
+    private static final int IMAGE_ID = 0;
+    private static final int IMAGE_DATA = 1;
+    private static final int IMAGE_ORIENTATION = 2;
+    private static final int IMAGE_BUCKET = 3;
+
+    /** The catalog of one MediaStore volume, cached until that volume changes. */
+    private static class Volume {
+        final String name;
+        final Uri uri;
+        final boolean internal;
+        HashMap<String, AlbumData> albums;
+        long generation;
+        int lastPosition;
+        int count;
+
+        Volume(String name) {
+            this.name = name;
+            this.uri = MediaStore.Images.Media.getContentUri(name);
+            this.internal = MediaStore.VOLUME_INTERNAL.equals(name);
+            this.generation = -1L;
+            this.lastPosition = INVALID;
+        }
+    }
+
     private final String mUnknownAlbumName;
     private final String mLocalSourceName;
-    private Set<String> mFoundAlbumIds;
-    private int mLastPosition;
+    private final HashMap<String, Volume> mVolumes;
 
     public LocalSource(Context context, SharedPreferences settings) {
         super(context, settings);
         mLocalSourceName = mResources.getString(R.string.local_source_name, "Photos on Device");
         mUnknownAlbumName = mResources.getString(R.string.unknown_album_name, "Unknown");
         mSourceName = TAG;
-        mLastPosition = INVALID;
+        mVolumes = new HashMap<String, Volume>();
         fillQueue();
     }
 
-    private Set<String> getFoundAlbums() {
-        if (mFoundAlbumIds == null) {
-            findAlbums();
+    private Collection<String> getVolumeNames() {
+        LinkedList<String> names = new LinkedList<String>();
+        names.add(MediaStore.VOLUME_INTERNAL);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // primary storage plus any adopted or removable cards that are mounted.
+            names.addAll(MediaStore.getExternalVolumeNames(mContext));
+        } else {
+            names.add(MediaStore.VOLUME_EXTERNAL);
+        }
+        return names;
+    }
+
+    private long getGeneration(Volume volume) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                return MediaStore.getGeneration(mContext, volume.name);
+            } catch (IllegalArgumentException iae) {
+                log(TAG, "no generation for " + volume.name + ": " + iae);
+            }
+        }
+        return -1L;
+    }
+
+    /** Drop the catalogs of volumes that went away, and return the mounted volumes. */
+    private LinkedList<Volume> getVolumes() {
+        Collection<String> names = getVolumeNames();
+        LinkedList<Volume> volumes = new LinkedList<Volume>();
+        synchronized (mVolumes) {
+            mVolumes.keySet().retainAll(names);
+            for (String name : names) {
+                Volume volume = mVolumes.get(name);
+                if (volume == null) {
+                    volume = new Volume(name);
+                    mVolumes.put(name, volume);
+                }
+                volumes.add(volume);
+            }
+        }
+        return volumes;
+    }
+
+    /** Scan all the volumes in parallel, reusing the catalogs of the ones that are unchanged. */
+    private LinkedList<Volume> getCatalogs() {
+        LinkedList<Volume> volumes = getVolumes();
+        LinkedList<Volume> stale = new LinkedList<Volume>();
+        LinkedList<Long> generations = new LinkedList<Long>();
+        LinkedList<Callable<HashMap<String, AlbumData>>> scans =
+                new LinkedList<Callable<HashMap<String, AlbumData>>>();
+        for (final Volume volume : volumes) {
+            long generation = getGeneration(volume);
+            if (volume.albums == null || generation == -1L || generation != volume.generation) {
+                stale.add(volume);
+                generations.add(generation);
+                scans.add(new Callable<HashMap<String, AlbumData>>() {
+                    @Override
+                    public HashMap<String, AlbumData> call() {
+                        return findAlbums(volume);
+                    }
+                });
+            } else {
+                log(TAG, "reusing catalog of " + volume.name);
+            }
+        }
+        // the workers only report back; volumes are only written on this thread, and only
+        // after a good scan, so that a failed one is tried again next time.
+        Iterator<Volume> volume = stale.iterator();
+        Iterator<Long> generation = generations.iterator();
+        for (Future<HashMap<String, AlbumData>> scan : invokeAll(scans)) {
+            Volume scanned = volume.next();
+            long scannedGeneration = generation.next();
+            try {
+                HashMap<String, AlbumData> albums = scan.get();
+                if (albums != null) {
+                    scanned.albums = albums;
+                    scanned.generation = scannedGeneration;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                log(TAG, "catalog of " + scanned.name + " failed: " + ee.getCause());
+            }
+        }
+        return volumes;
+    }
+
+    private <T> List<Future<T>> invokeAll(Collection<Callable<T>> tasks) {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return getWorkers().invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            log(TAG, "interrupted while scanning volumes");
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
         }
-        return mFoundAlbumIds;
     }
 
     @Override
     public Collection<AlbumData> findAlbums() {
         log(TAG, "finding albums");
         HashMap<String, AlbumData> foundAlbums = new HashMap<String, AlbumData>();
-        findAlbums(false, foundAlbums);
-        findAlbums(true, foundAlbums);
+        for (Volume volume : getCatalogs()) {
+            if (volume.albums != null) {
+                for (AlbumData data : volume.albums.values()) {
+                    if (!foundAlbums.containsKey(data.id)) {
+                        foundAlbums.put(data.id, data);
+                    }
+                }
+            }
+        }
 
         log(TAG, "found " + foundAlbums.size() + " items.");
-        mFoundAlbumIds = foundAlbums.keySet();
         return foundAlbums.values();
     }
 
-    public void findAlbums(boolean internal, HashMap<String, AlbumData> foundAlbums) {
-        Uri uri = internal ? MediaStore.Images.Media.INTERNAL_CONTENT_URI
-            : MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+    /** The albums on one volume, or null if the provider didn't answer. */
+    private HashMap<String, AlbumData> findAlbums(Volume volume) {
+        HashMap<String, AlbumData> foundAlbums = new HashMap<String, AlbumData>();
         String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.BUCKET_ID,
                 MediaStore.Images.Media.BUCKET_DISPLAY_NAME, MediaStore.Images.Media.DATE_TAKEN};
         // This is a horrible hack that closes the where clause and injects a grouping clause.
-        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        Cursor cursor = mResolver.query(volume.uri, projection, null, null, null);
         if (cursor != null) {
             cursor.moveToPosition(-1);
 
@@ -86,7 +220,7 @@ public class LocalSource extends CursorPhotoSource {
                 log(TAG, "can't find the ID column!");
             } else {
                 while (cursor.moveToNext()) {
-                    String id = constructId(internal, cursor.getString(bucketIndex));
+                    String id = constructId(volume.internal, cursor.getString(bucketIndex));
                     AlbumData data = foundAlbums.get(id);
                     if (foundAlbums.get(id) == null) {
                         data = new AlbumData();
@@ -103,7 +237,7 @@ public class LocalSource extends CursorPhotoSource {
                             data.title = mUnknownAlbumName;
                         }
 
-                        log(TAG, data.title + " found");
+                        log(TAG, data.title + " found on " + volume.name);
                         foundAlbums.put(id, data);
                     }
                     if (updatedIndex >= 0) {
@@ -115,7 +249,12 @@ public class LocalSource extends CursorPhotoSource {
                 }
             }
             cursor.close();
+        } else {
+            log(TAG, "received a null cursor for " + volume.name);
+            reportError();
+            return null;
         }
+        return foundAlbums;
     }
 
     public static String constructId(boolean internal, String bucketId) {
@@ -126,11 +265,9 @@ public class LocalSource extends CursorPhotoSource {
     protected void openCursor(ImageData data) {
         log(TAG, "opening single album");
 
-        String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.ORIENTATION,
-                MediaStore.Images.Media.BUCKET_ID, MediaStore.Images.Media.BUCKET_DISPLAY_NAME};
         String selection = MediaStore.Images.Media.BUCKET_ID + " = '" + data.albumId + "'";
 
-        data.cursor = mResolver.query(data.uri, projection, selection, null, null);
+        data.cursor = mResolver.query(data.uri, IMAGE_PROJECTION, selection, null, null);
     }
 
     @Override
@@ -140,10 +277,10 @@ public class LocalSource extends CursorPhotoSource {
                 openCursor(data);
             }
             if (data.cursor != null) {
-                int dataIndex = data.cursor.getColumnIndex(MediaStore.Images.Media.DATA);
+                RowReader row = getRowReader(data);
                 data.cursor.moveToPosition(-1);
                 while (data.position == -1 && data.cursor.moveToNext()) {
-                    String url = data.cursor.getString(dataIndex);
+                    String url = row.getString(IMAGE_DATA);
                     if (url != null && url.equals(data.url)) {
                         data.position = data.cursor.getPosition();
                     }
@@ -157,42 +294,135 @@ public class LocalSource extends CursorPhotoSource {
     }
 
     @Override
-    protected ImageData unpackImageData(Cursor cursor, ImageData data) {
+    protected RowReader newRowReader() {
+        return new RowReader(IMAGE_PROJECTION);
+    }
+
+    @Override
+    protected ImageData unpackImageData(RowReader row, ImageData data) {
         if (data == null) {
             data = new ImageData();
         }
-        int dataIndex = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
-        int orientationIndex = cursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
-        int bucketIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID);
-
-        data.url = cursor.getString(dataIndex);
-        data.albumId = cursor.getString(bucketIndex);
+        data.id = row.getString(IMAGE_ID);
+        data.url = row.getString(IMAGE_DATA);
+        data.albumId = row.getString(IMAGE_BUCKET);
         data.position = UNINITIALIZED;
         data.cursor = null;
-        data.orientation = cursor.getInt(orientationIndex);
+        data.orientation = row.getInt(IMAGE_ORIENTATION);
 
         return data;
     }
 
+    /** What one volume offered, to be applied to it on the caller's thread. */
+    private static class VolumeScan {
+        final Volume volume;
+        final LinkedList<ImageData> images;
+        boolean failed;
+        int count;
+        int start;
+        int quota;
+
+        VolumeScan(Volume volume) {
+            this.volume = volume;
+            this.images = new LinkedList<ImageData>();
+        }
+
+        /** Keep the first quota images, and move on only past those. */
+        void apply() {
+            while (images.size() > quota) {
+                images.removeLast();
+            }
+            if (failed) {
+                return;
+            }
+            volume.count = count;
+            if (count == 0) {
+                volume.lastPosition = INVALID;
+            } else if (quota == count - start - 1) {
+                // everything up to the end was kept, so start over next time.
+                volume.lastPosition = -1;
+            } else if (start >= 0 || quota > 0) {
+                volume.lastPosition = start + quota;
+            }
+        }
+    }
+
     @Override
-    protected Collection<ImageData> findImages(int howMany) {
+    protected Collection<ImageData> findImages(final int howMany) {
         log(TAG, "finding images");
+        LinkedList<VolumeScan> found = new LinkedList<VolumeScan>();
+        LinkedList<Callable<VolumeScan>> scans = new LinkedList<Callable<VolumeScan>>();
+        for (final Volume volume : getCatalogs()) {
+            final VolumeScan scan = new VolumeScan(volume);
+            found.add(scan);
+            scans.add(new Callable<VolumeScan>() {
+                @Override
+                public VolumeScan call() {
+                    findImages(scan, howMany);
+                    return scan;
+                }
+            });
+        }
+
+        LinkedList<VolumeScan> results = new LinkedList<VolumeScan>();
+        for (Future<VolumeScan> scan : invokeAll(scans)) {
+            try {
+                results.add(scan.get());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                log(TAG, "volume scan failed: " + ee.getCause());
+            }
+        }
+
+        // each volume offered a full set: share the request out by the size of each volume,
+        // and hand what a small volume can't fill to the others.
+        int total = 0;
+        for (VolumeScan scan : results) {
+            total += scan.count;
+        }
+        int remaining = howMany;
+        for (VolumeScan scan : results) {
+            int share = (total == 0 ? 0 : (int) ((long) howMany * scan.count / total));
+            scan.quota = Math.min(scan.images.size(), share);
+            remaining -= scan.quota;
+        }
+        boolean progress = true;
+        while (remaining > 0 && progress) {
+            progress = false;
+            for (VolumeScan scan : results) {
+                if (remaining > 0 && scan.quota < scan.images.size()) {
+                    scan.quota++;
+                    remaining--;
+                    progress = true;
+                }
+            }
+        }
+
         LinkedList<ImageData> foundImages = new LinkedList<ImageData>();
-        boolean internalFirst = mRNG.nextInt(2) == 0;  // filp a coin to be fair
-        findImages(internalFirst, howMany, foundImages);
-        findImages(!internalFirst, howMany - foundImages.size(), foundImages);
+        for (VolumeScan scan : results) {
+            scan.apply();
+            foundImages.addAll(scan.images);
+        }
+        int catalogSize = 0;
+        for (VolumeScan scan : found) {
+            catalogSize += scan.volume.count;
+        }
+        mCatalogSize = catalogSize;
         log(TAG, "found " + foundImages.size() + " items.");
         return foundImages;
     }
 
-    protected void findImages(boolean internal, int howMany, LinkedList<ImageData> foundImages ) {
-        Uri uri = internal ? MediaStore.Images.Media.INTERNAL_CONTENT_URI
-            : MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.ORIENTATION,
-                MediaStore.Images.Media.BUCKET_ID, MediaStore.Images.Media.BUCKET_DISPLAY_NAME};
+    /** Read up to howMany rows of one volume, from where it left off, without moving it on. */
+    private void findImages(VolumeScan scan, int howMany) {
+        final Volume volume = scan.volume;
+        scan.start = volume.lastPosition;
+        if (volume.albums == null) {
+            return;
+        }
         String selection = "";
-        for (String id : getFoundAlbums()) {
-            if (isInternalId(id) == internal && mSettings.isAlbumEnabled(id)) {
+        for (String id : volume.albums.keySet()) {
+            if (mSettings.isAlbumEnabled(id)) {
                 String[] parts = id.split(":");
                 if (parts.length > 1) {
                     if (selection.length() > 0) {
@@ -205,40 +435,36 @@ public class LocalSource extends CursorPhotoSource {
         if (selection.isEmpty()) {
             return;
         }
-        Cursor cursor = mResolver.query(uri, projection, selection, null, null);
+        Cursor cursor = mResolver.query(volume.uri, IMAGE_PROJECTION, selection, null, null);
         if (cursor != null) {
-            int dataIndex = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
+            RowReader row = newRowReader().bind(cursor);
+            scan.count = cursor.getCount();
 
-            if (cursor.getCount() > howMany && mLastPosition == INVALID) {
-                mLastPosition = pickRandomStart(cursor.getCount(), howMany);
+            int start = volume.lastPosition;
+            if (cursor.getCount() > howMany && start == INVALID) {
+                start = pickRandomStart(cursor.getCount(), howMany);
             }
-            cursor.moveToPosition(mLastPosition);
+            cursor.moveToPosition(start);
+            scan.start = cursor.getPosition();
 
-            if (dataIndex < 0) {
+            if (!row.has(IMAGE_DATA)) {
                 log(TAG, "can't find the DATA column!");
             } else {
-                while (foundImages.size() < howMany && cursor.moveToNext()) {
-                    ImageData data = unpackImageData(cursor, null);
-                    data.uri = uri;
-                    foundImages.offer(data);
-                    mLastPosition = cursor.getPosition();
-                }
-                if (cursor.isAfterLast()) {
-                    mLastPosition = -1;
-                }
-                if (cursor.isBeforeFirst()) {
-                    mLastPosition = INVALID;
+                while (scan.images.size() < howMany && cursor.moveToNext()) {
+                    ImageData data = unpackImageData(row, null);
+                    data.uri = volume.uri;
+                    scan.images.offer(data);
                 }
             }
 
             cursor.close();
+        } else {
+            log(TAG, "received a null cursor for " + volume.name);
+            scan.failed = true;
+            reportError();
         }
     }
 
-    private boolean isInternalId(String id) {
-        return id.endsWith("i");
-    }
-
     @Override
     protected InputStream getStream(ImageData data, int longSide) {
         FileInputStream fis = null;
@@ -252,5 +478,41 @@ public class LocalSource extends CursorPhotoSource {
 
         return (InputStream) fis;
     }
-}
 
+    @Override
+    protected Bitmap getThumbnail(ImageData data, int longSide) {
+        if (data.id == null || data.uri == null) {
+            return null;
+        }
+        Bitmap thumbnail = null;
+        try {
+            long id = Long.parseLong(data.id);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // served from the provider's thumbnail cache, already upright.
+                Uri uri = ContentUris.withAppendedId(data.uri, id);
+                thumbnail = mResolver.loadThumbnail(uri, new Size(longSide, longSide));
+            } else {
+                thumbnail = MediaStore.Images.Thumbnails.getThumbnail(
+                        mResolver.getContentResolver(), id,
+                        MediaStore.Images.Thumbnails.MINI_KIND, null);
+                if (thumbnail != null && data.orientation != 0) {
+                    Matrix matrix = new Matrix();
+                    matrix.setRotate(data.orientation);
+                    Bitmap rotated = Bitmap.createBitmap(thumbnail, 0, 0,
+                            thumbnail.getWidth(), thumbnail.getHeight(), matrix, true);
+                    if (rotated != thumbnail) {
+                        thumbnail.recycle();
+                    }
+                    thumbnail = rotated;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            log(TAG, "bad image id: " + data.id);
+            thumbnail = null;
+        } catch (IOException ioe) {
+            log(TAG, "no thumbnail for " + data.id + ": " + ioe);
+            thumbnail = null;
+        }
+        return thumbnail;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A size-capped directory of encoded photos, evicted least recently used first.
+ * Each photo can carry a line of info, such as where it came from, in a sidecar index
+ * that is trimmed along with the photos.
+ */
+public class PhotoCache {
+    private static final String TAG = "PhotoTable.PhotoCache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final SharedPreferences mIndex;
+    private long mBytes;
+    private boolean mScanned;
+    private long mHits;
+    private long mMisses;
+    private long mBytesWritten;
+
+    public PhotoCache(Context context, String name, long maxBytes) {
+        mDirectory = new File(context.getCacheDir(), name);
+        mMaxBytes = maxBytes;
+        mIndex = context.getSharedPreferences(TAG + "." + name, 0);
+        mBytes = 0L;
+        mScanned = false;
+    }
+
+    private static String fileName(String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private synchronized void scan() {
+        if (!mScanned) {
+            mScanned = true;
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "can't create " + mDirectory);
+                return;
+            }
+            mBytes = 0L;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        // left behind by a write that never finished.
+                        file.delete();
+                    } else {
+                        mBytes += file.length();
+                    }
+                }
+            }
+            // forget about photos that were removed behind our back.
+            SharedPreferences.Editor editor = null;
+            for (String name : mIndex.getAll().keySet()) {
+                if (!new File(mDirectory, name).isFile()) {
+                    editor = (editor == null ? mIndex.edit() : editor);
+                    editor.remove(name);
+                }
+            }
+            if (editor != null) {
+                editor.apply();
+            }
+        }
+    }
+
+    /** Remember a line of info about a cached photo, for as long as the photo is cached. */
+    public void setInfo(String key, String info) {
+        mIndex.edit().putString(fileName(key), info).apply();
+    }
+
+    /** The info stored with a photo, or null if there is none. */
+    public String getInfo(String key) {
+        return mIndex.getString(fileName(key), null);
+    }
+
+    public synchronized boolean contains(String key) {
+        scan();
+        return new File(mDirectory, fileName(key)).isFile();
+    }
+
+    /** Open a cached photo and mark it as recently used, or return null on a miss. */
+    public synchronized InputStream open(String key) {
+        scan();
+        File file = new File(mDirectory, fileName(key));
+        try {
+            InputStream is = new FileInputStream(file);
+            file.setLastModified(System.currentTimeMillis());
+            mHits++;
+            return is;
+        } catch (FileNotFoundException fnf) {
+            mMisses++;
+            return null;
+        }
+    }
+
+    /** Copy a photo into the cache, and return the number of bytes stored or -1 on failure. */
+    public long put(String key, InputStream in) {
+        File temp = newTempFile(key);
+        if (temp == null) {
+            return -1L;
+        }
+        long length = 0L;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                length += count;
+            }
+            out.close();
+            out = null;
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed to cache " + key + ": " + ioe);
+            length = -1L;
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ioe) {
+                // already failing.
+            }
+        }
+        if (length < 0L || !commit(key, temp)) {
+            temp.delete();
+            return -1L;
+        }
+        return length;
+    }
+
+    /**
+     * Wrap a stream so that everything read from it is also written to the cache.
+     * The photo is committed when the stream is closed; whatever the reader left unread
+     * is copied first, so that a decoder that stops early still leaves a complete file.
+     */
+    public InputStream writeThrough(String key, InputStream in) {
+        File temp = newTempFile(key);
+        if (temp == null) {
+            return in;
+        }
+        try {
+            return new WriteThroughStream(key, in, temp);
+        } catch (FileNotFoundException fnf) {
+            Log.w(TAG, "can't write " + temp + ": " + fnf);
+            temp.delete();
+            return in;
+        }
+    }
+
+    private class WriteThroughStream extends FilterInputStream {
+        private final String mKey;
+        private final File mTemp;
+        private FileOutputStream mOut;
+
+        WriteThroughStream(String key, InputStream in, File temp) throws FileNotFoundException {
+            super(in);
+            mKey = key;
+            mTemp = temp;
+            mOut = new FileOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                copy(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes must still reach the file.
+            byte[] buffer = new byte[(int) Math.min(count, COPY_BUFFER_SIZE)];
+            int n = read(buffer, 0, buffer.length);
+            return Math.max(n, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void copy(byte[] buffer, int offset, int count) {
+            if (mOut != null) {
+                try {
+                    mOut.write(buffer, offset, count);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed to cache " + mKey + ": " + ioe);
+                    abandon();
+                }
+            }
+        }
+
+        private void abandon() {
+            try {
+                mOut.close();
+            } catch (IOException ioe) {
+                // already failing.
+            }
+            mOut = null;
+            mTemp.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mOut != null) {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    while (read(buffer, 0, buffer.length) != -1) {
+                        // drain the rest into the file.
+                    }
+                }
+            } catch (IOException ioe) {
+                log("incomplete download of " + mKey + ": " + ioe);
+                if (mOut != null) {
+                    abandon();
+                }
+            } finally {
+                super.close();
+            }
+            if (mOut != null) {
+                mOut.close();
+                mOut = null;
+                if (!commit(mKey, mTemp)) {
+                    mTemp.delete();
+                }
+            }
+        }
+    }
+
+    /** Size of a cached photo, or zero if it is not cached. */
+    public synchronized long length(String key) {
+        scan();
+        return new File(mDirectory, fileName(key)).length();
+    }
+
+    /** Keys of the cached photos that end with the given suffix. */
+    public synchronized List<String> keys(String suffix) {
+        scan();
+        ArrayList<String> keys = new ArrayList<String>();
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(suffix) && !name.endsWith(TEMP_SUFFIX)) {
+                    keys.add(name);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /** A scratch file to write a photo into before committing it under its key. */
+    public File newTempFile(String key) {
+        scan();
+        try {
+            return File.createTempFile(fileName(key), TEMP_SUFFIX, mDirectory);
+        } catch (IOException ioe) {
+            Log.w(TAG, "can't create a temporary file: " + ioe);
+            return null;
+        }
+    }
+
+    /** Move a completed scratch file into place, evicting old photos to make room. */
+    public synchronized boolean commit(String key, File temp) {
+        scan();
+        File file = new File(mDirectory, fileName(key));
+        long replaced = file.length();
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "can't commit " + key);
+            return false;
+        }
+        mBytes += file.length() - replaced;
+        mBytesWritten += file.length();
+        trimLocked();
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        scan();
+        File file = new File(mDirectory, fileName(key));
+        long length = file.length();
+        if (file.delete()) {
+            mBytes -= length;
+            mIndex.edit().remove(file.getName()).apply();
+        }
+    }
+
+    private void trimLocked() {
+        if (mBytes <= mMaxBytes) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long delta = a.lastModified() - b.lastModified();
+                return (delta < 0L ? -1 : (delta > 0L ? 1 : 0));
+            }
+        });
+        SharedPreferences.Editor editor = mIndex.edit();
+        for (int i = 0; i < files.length && mBytes > mMaxBytes; i++) {
+            if (!files[i].getName().endsWith(TEMP_SUFFIX)) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    mBytes -= length;
+                    editor.remove(files[i].getName());
+                }
+            }
+        }
+        editor.apply();
+    }
+
+    /** Fraction of lookups that were served from the cache. */
+    public synchronized float getHitRate() {
+        long lookups = mHits + mMisses;
+        return (lookups == 0 ? 0f : (float) mHits / lookups);
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "cache " + mDirectory.getName() + ": " + mBytes + "/" + mMaxBytes +
+                " bytes, hits=" + mHits + " misses=" + mMisses +
+                " hit rate=" + getHitRate() + " written=" + mBytesWritten + " bytes");
+    }
+
+    private static void log(String message) {
+        PhotoSource.log(TAG, message);
+    }
+}
@@ -29,6 +29,7 @@ import android.view.ViewPropertyAnimator;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -45,6 +46,7 @@ public class PhotoCarousel extends FrameLayout {
 
     private final Flipper mFlipper;
     private final PhotoSourcePlexor mPhotoSource;
+    private final FrameStats mFrameStats;
     private final GestureDetector mGestureDetector;
     private final View[] mPanel;
     private final int mFlipDuration;
@@ -104,6 +106,7 @@ public class PhotoCarousel extends FrameLayout {
         mBitmapStore = new HashMap<View, Bitmap>();
         mBitmapQueue = new LinkedList<Bitmap>();
         mBitmapLoaders = new LinkedList<PhotoLoadTask>();
+        mFrameStats = new FrameStats(context);
 
         mPanel = new View[2];
         mFlipper = new Flipper();
@@ -149,6 +152,7 @@ public class PhotoCarousel extends FrameLayout {
         public void onPostExecute(Bitmap photo) {
             if (photo != null) {
                 mBitmapQueue.offer(photo);
+                mFrameStats.noteDecode();
             }
             mFlipper.run();
         }
@@ -262,6 +266,7 @@ public class PhotoCarousel extends FrameLayout {
                     }
                 });
 
+        mFrameStats.begin(FrameStats.FLIP, mFlipDuration);
         frontAnim.start();
         backAnim.start();
     }
@@ -297,6 +302,14 @@ public class PhotoCarousel extends FrameLayout {
         return true;
     }
 
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "PhotoCarousel:");
+        pw.println(prefix + "  queued=" + mBitmapQueue.size() +
+                " loading=" + mBitmapLoaders.size());
+        mFrameStats.dump(pw, prefix + "  ");
+        mPhotoSource.dump(pw, prefix + "  ");
+    }
+
     private void log(String message) {
         if (DEBUG) {
             Log.i(TAG, message);
@@ -15,26 +15,35 @@
  */
 package com.android.dreams.phototable;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Picks a random image from a source of photos.
@@ -47,6 +56,9 @@ public abstract class PhotoSource {
     // that we can mark and reset the input stream to avoid duplicate network i/o
     private static final int BUFFER_SIZE = 32 * 1024;
 
+    // Shared by all sources for blocking provider and file i/o; idle threads are reaped.
+    private static ExecutorService sWorkers;
+
     public class ImageData {
         public String id;
         public String url;
@@ -54,11 +66,24 @@ public abstract class PhotoSource {
 
         protected String albumId;
         protected Cursor cursor;
+        protected CursorPhotoSource.RowReader reader;
         protected int position;
         protected Uri uri;
 
         InputStream getStream(int longSide) {
-            return PhotoSource.this.getStream(this, longSide);
+            return PhotoSource.this.openStream(this, longSide);
+        }
+        Bitmap getThumbnail(int longSide) {
+            return PhotoSource.this.getThumbnail(this, longSide);
+        }
+        ByteBuffer getBuffer() {
+            return PhotoSource.this.getBuffer(this);
+        }
+        void prefetch() {
+            PhotoSource.this.prefetch(this);
+        }
+        void onDecodeBounds(int width, int height) {
+            PhotoSource.this.onDecodeBounds(this, width, height);
         }
         ImageData naturalNext() {
             return PhotoSource.this.naturalNext(this);
@@ -87,8 +112,10 @@ public abstract class PhotoSource {
 
     private final LinkedList<ImageData> mImageQueue;
     private final int mMaxQueueSize;
+    private final int mPrefetchCount;
     private final float mMaxCropRatio;
     private final int mBadImageSkipLimit;
+    private final int mThumbnailLongSide;
     private final PhotoSource mFallbackSource;
     private final HashMap<Bitmap, ImageData> mImageMap;
 
@@ -96,9 +123,13 @@ public abstract class PhotoSource {
     protected final Resources mResources;
     protected final Random mRNG;
     protected final AlbumSettings mSettings;
-    protected final ContentResolver mResolver;
+    protected final DeadlineResolver mResolver;
 
     protected String mSourceName;
+    // Number of images in the enabled albums at the last scan, or -1 if not yet known.
+    protected volatile int mCatalogSize;
+    private final AtomicInteger mErrors;
+    private volatile SourceHealth mHealth;
 
     public PhotoSource(Context context, SharedPreferences settings) {
         this(context, settings, new StockSource(context, settings));
@@ -108,15 +139,20 @@ public abstract class PhotoSource {
         mSourceName = TAG;
         mContext = context;
         mSettings = AlbumSettings.getAlbumSettings(settings);
-        mResolver = mContext.getContentResolver();
         mResources = context.getResources();
+        mResolver = new DeadlineResolver(mContext.getContentResolver(),
+                mResources.getInteger(R.integer.provider_deadline));
         mImageQueue = new LinkedList<ImageData>();
         mMaxQueueSize = mResources.getInteger(R.integer.image_queue_size);
+        mPrefetchCount = mResources.getInteger(R.integer.prefetch_count);
         mMaxCropRatio = mResources.getInteger(R.integer.max_crop_ratio) / 1000000f;
         mBadImageSkipLimit = mResources.getInteger(R.integer.bad_image_skip_limit);
+        mThumbnailLongSide = mResources.getInteger(R.integer.thumbnail_long_side);
         mImageMap = new HashMap<Bitmap, ImageData>();
         mRNG = new Random();
         mFallbackSource = fallbackSource;
+        mCatalogSize = -1;
+        mErrors = new AtomicInteger();
     }
 
     protected void fillQueue() {
@@ -138,6 +174,7 @@ public abstract class PhotoSource {
                     fillQueue();
                 }
                 imageData = mImageQueue.poll();
+                prefetchLocked();
             }
             if (imageData != null) {
                 image = load(imageData, options, longSide, shortSide);
@@ -156,8 +193,36 @@ public abstract class PhotoSource {
         return image;
     }
 
+    /** Give the sources of the next few images in the queue a chance to fetch them early. */
+    private void prefetchLocked() {
+        int count = 0;
+        for (ImageData upcoming : mImageQueue) {
+            if (count++ >= mPrefetchCount) {
+                break;
+            }
+            upcoming.prefetch();
+        }
+    }
+
     public Bitmap load(ImageData data, BitmapFactory.Options options, int longSide, int shortSide) {
         log(TAG, "decoding photo resource to " +  longSide + ", " + shortSide);
+        if (longSide <= mThumbnailLongSide) {
+            Bitmap thumbnail = loadThumbnail(data, options, longSide, shortSide);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            ByteBuffer buffer = data.getBuffer();
+            if (buffer != null) {
+                Bitmap image = loadBuffer(data, buffer, options, longSide, shortSide);
+                if (image != null) {
+                    return image;
+                }
+            }
+        }
+
         InputStream is = data.getStream(longSide);
 
         Bitmap image = null;
@@ -171,6 +236,9 @@ public abstract class PhotoSource {
             int rawLongSide = Math.max(options.outWidth, options.outHeight);
             int rawShortSide = Math.min(options.outWidth, options.outHeight);
             log(TAG, "I see bounds of " +  rawLongSide + ", " + rawShortSide);
+            if (rawLongSide != -1 && rawShortSide != -1) {
+                data.onDecodeBounds(options.outWidth, options.outHeight);
+            }
 
             if (rawLongSide != -1 && rawShortSide != -1) {
                 float insideRatio = Math.max((float) longSide / (float) rawLongSide,
@@ -262,10 +330,143 @@ public abstract class PhotoSource {
         return image;
     }
 
+    /** Decode a photo in place from memory, scaling it in the decoder. API 28 and later. */
+    private Bitmap loadBuffer(final ImageData data, ByteBuffer buffer,
+            BitmapFactory.Options options, final int longSide, final int shortSide) {
+        Bitmap image = null;
+        try {
+            image = ImageDecoder.decodeBitmap(ImageDecoder.createSource(buffer),
+                    new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info,
+                        ImageDecoder.Source source) {
+                    int width = info.getSize().getWidth();
+                    int height = info.getSize().getHeight();
+                    log(TAG, "I see bounds of " + width + ", " + height);
+                    data.onDecodeBounds(width, height);
+                    float ratio = Math.max((float) longSide / (float) Math.max(width, height),
+                            (float) shortSide / (float) Math.min(width, height));
+                    if (Math.abs(ratio - 1.0f) > 0.001) {
+                        decoder.setTargetSize(Math.max(1, Math.round(ratio * width)),
+                                Math.max(1, Math.round(ratio * height)));
+                    }
+                    // the table draws photos into software canvases.
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                }
+            });
+            options.outWidth = image.getWidth();
+            options.outHeight = image.getHeight();
+            log(TAG, "returning bitmap " + image.getWidth() + ", " + image.getHeight());
+        } catch (OutOfMemoryError ome) {
+            log(TAG, "OUT OF MEMORY: " + ome);
+            image = null;
+        } catch (IOException ioe) {
+            log(TAG, "buffer decoding failed, trying the stream: " + ioe);
+            image = null;
+        }
+        return image;
+    }
+
+    /** Small renditions can come from the platform thumbnail cache, if it is big enough. */
+    private Bitmap loadThumbnail(ImageData data, BitmapFactory.Options options,
+            int longSide, int shortSide) {
+        Bitmap thumbnail = null;
+        try {
+            thumbnail = data.getThumbnail(longSide);
+            if (thumbnail != null) {
+                int rawLongSide = Math.max(thumbnail.getWidth(), thumbnail.getHeight());
+                int rawShortSide = Math.min(thumbnail.getWidth(), thumbnail.getHeight());
+                log(TAG, "thumbnail bounds are " +  rawLongSide + ", " + rawShortSide);
+                float ratio = Math.max((float) longSide / (float) rawLongSide,
+                        (float) shortSide / (float) rawShortSide);
+                if (ratio > 1.001f) {
+                    log(TAG, "thumbnail is too small, using the original");
+                    thumbnail.recycle();
+                    thumbnail = null;
+                } else if (Math.abs(ratio - 1.0f) > 0.001) {
+                    log(TAG, "scaling thumbnail down by " + ratio);
+                    Bitmap scaled = Bitmap.createScaledBitmap(thumbnail,
+                            (int) (ratio * thumbnail.getWidth()),
+                            (int) (ratio * thumbnail.getHeight()),
+                            true);
+                    if (scaled != thumbnail) {
+                        thumbnail.recycle();
+                    }
+                    thumbnail = scaled;
+                }
+            }
+        } catch (OutOfMemoryError ome) {
+            log(TAG, "OUT OF MEMORY: " + ome);
+            thumbnail = null;
+        }
+
+        if (thumbnail != null) {
+            options.outWidth = thumbnail.getWidth();
+            options.outHeight = thumbnail.getHeight();
+            log(TAG, "returning thumbnail " + options.outWidth + ", " + options.outHeight);
+        }
+        return thumbnail;
+    }
+
+    /** Attach a tracker for the latency and failures of this source. */
+    public void setHealth(SourceHealth health) {
+        mHealth = health;
+    }
+
+    /** Note that a provider call failed without throwing, e.g. it returned a null cursor. */
+    protected void reportError() {
+        mErrors.incrementAndGet();
+    }
+
+    /** Return and reset the number of errors reported since the last call. */
+    public int takeErrors() {
+        return mErrors.getAndSet(0);
+    }
+
+    private InputStream openStream(ImageData data, int longSide) {
+        final SourceHealth health = mHealth;
+        final long start = SystemClock.elapsedRealtime();
+        InputStream is = getStream(data, longSide);
+        if (health != null) {
+            long latency = SystemClock.elapsedRealtime() - start;
+            if (is == null) {
+                health.recordFailure(SourceHealth.STREAM, latency);
+            } else {
+                health.recordSuccess(SourceHealth.STREAM, latency);
+            }
+        }
+        return is;
+    }
+
+    /** Size of the enabled catalog at the last scan, or -1 if it has not been scanned. */
+    public int getCatalogSize() {
+        return mCatalogSize;
+    }
+
     public void setSeed(long seed) {
         mRNG.setSeed(seed);
     }
 
+    /** Background threads for scanning sources in parallel. */
+    protected static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            final AtomicInteger count = new AtomicInteger();
+            sWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "PhotoSource #" + count.incrementAndGet());
+                }
+            });
+        }
+        return sWorkers;
+    }
+
     protected static void log(String tag, String message) {
         if (DEBUG) {
             Log.i(tag, message);
@@ -308,6 +509,20 @@ public abstract class PhotoSource {
         return image;
     }
 
+    /** Decode the image behind a bitmap again, at another size. */
+    public Bitmap reload(Bitmap current, BitmapFactory.Options options,
+            int longSide, int shortSide) {
+        Bitmap image = null;
+        ImageData data = mImageMap.get(current);
+        if (data != null) {
+            image = load(data, options, longSide, shortSide);
+            if (image != null) {
+                mImageMap.put(image, data);
+            }
+        }
+        return image;
+    }
+
     public void donePaging(Bitmap current) {
         ImageData data = mImageMap.get(current);
         if (data != null) {
@@ -315,6 +530,14 @@ public abstract class PhotoSource {
         }
     }
 
+    /** Track a derived bitmap, such as a framed copy, in place of the one that was loaded. */
+    public void rekey(Bitmap original, Bitmap replacement) {
+        ImageData data = mImageMap.remove(original);
+        if (data != null) {
+            mImageMap.put(replacement, data);
+        }
+    }
+
     public void recycle(Bitmap trash) {
         if (trash != null) {
             mImageMap.remove(trash);
@@ -322,6 +545,41 @@ public abstract class PhotoSource {
         }
     }
 
+    /**
+     * Return an upright thumbnail for the image, or null if the source has none.
+     * It may be smaller than longSide, in which case the original is decoded instead.
+     */
+    protected Bitmap getThumbnail(ImageData data, int longSide) {
+        return null;
+    }
+
+    /**
+     * Return the encoded image as a buffer that can be decoded in place, or null to read it
+     * from getStream() instead. Only used from API 28.
+     */
+    protected ByteBuffer getBuffer(ImageData data) {
+        return null;
+    }
+
+    /**
+     * Hint that the image will be needed soon. Sources with slow storage may start
+     * fetching it in the background; this must not block.
+     */
+    protected void prefetch(ImageData data) {
+    }
+
+    /** Called by the plexor when the default network comes, goes or changes cost. */
+    protected void onConnectivityChanged(ConnectivityMonitor connectivity) {
+    }
+
+    /** Called with the encoded size of the stream most recently opened for the image. */
+    protected void onDecodeBounds(ImageData data, int width, int height) {
+    }
+
+    /** Print the state of the source for diagnostics. */
+    public void dump(PrintWriter pw, String prefix) {
+    }
+
     protected abstract InputStream getStream(ImageData data, int longSide);
     protected abstract Collection<ImageData> findImages(int howMany);
     protected abstract ImageData naturalNext(ImageData current);
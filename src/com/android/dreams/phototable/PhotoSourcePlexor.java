@@ -17,53 +17,262 @@ package com.android.dreams.phototable;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Loads images from a variety of sources.
  */
-public class PhotoSourcePlexor extends PhotoSource {
+public class PhotoSourcePlexor extends PhotoSource
+        implements ConnectivityMonitor.Listener {
     private static final String TAG = "PhotoTable.PhotoSourcePlexor";
 
-    private final PhotoSource mPicasaSource;
-    private final PhotoSource mLocalSource;
+    private final ArrayList<PhotoSource> mSources;
+    private final ArrayList<SourceHealth> mHealth;
+    private final int[] mWeights;
+    private final long mDeadline;
+    private final ConnectivityMonitor mConnectivity;
+    // set while a source is working for us, even past its deadline: cancelling only
+    // interrupts, and a straggler may keep going for a while.
+    private final AtomicBoolean[] mBusy;
 
     public PhotoSourcePlexor(Context context, SharedPreferences settings) {
         super(context, settings);
         mSourceName = TAG;
-        mPicasaSource = new PicasaSource(context, settings);
-        mLocalSource = new LocalSource(context, settings);
+        mDeadline = mResources.getInteger(R.integer.source_deadline);
+        mSources = new ArrayList<PhotoSource>();
+        mHealth = new ArrayList<SourceHealth>();
+        ArrayList<Integer> weights = new ArrayList<Integer>();
+        for (PhotoSourceRegistry.Entry entry : PhotoSourceRegistry.getEntries(context)) {
+            if (entry.weight > 0) {
+                PhotoSource source = PhotoSourceRegistry.create(entry, context, settings);
+                if (source != null) {
+                    SourceHealth health = new SourceHealth(source.mSourceName, mResources);
+                    source.setHealth(health);
+                    mSources.add(source);
+                    mHealth.add(health);
+                    weights.add(entry.weight);
+                }
+            }
+        }
+        mWeights = new int[weights.size()];
+        for (int i = 0; i < mWeights.length; i++) {
+            mWeights[i] = weights.get(i);
+        }
+        mBusy = new AtomicBoolean[mSources.size()];
+        for (int i = 0; i < mBusy.length; i++) {
+            mBusy[i] = new AtomicBoolean();
+        }
+        mConnectivity = ConnectivityMonitor.getInstance(context);
+        mConnectivity.addListener(this);
+        onConnectivityChanged(mConnectivity);
     }
 
     @Override
-    public Collection<AlbumData> findAlbums() {
-        log(TAG, "finding albums");
-        LinkedList<AlbumData> foundAlbums = new LinkedList<AlbumData>();
+    public void onConnectivityChanged(ConnectivityMonitor connectivity) {
+        for (PhotoSource source : mSources) {
+            source.onConnectivityChanged(connectivity);
+        }
+    }
+
+    /** Per-source latency, errors and breaker state, in the order the sources are plexed. */
+    public List<SourceHealth> getHealth() {
+        return mHealth;
+    }
 
-        foundAlbums.addAll(mPicasaSource.findAlbums());
-        log(TAG, "found " + foundAlbums.size() + " network albums");
+    @Override
+    public void dump(PrintWriter pw, String prefix) {
+        mConnectivity.dump(pw, prefix);
+        pw.println(prefix + "sources:");
+        for (int i = 0; i < mSources.size(); i++) {
+            PhotoSource source = mSources.get(i);
+            pw.println(prefix + "  weight=" + mWeights[i] +
+                    " catalog=" + source.getCatalogSize() +
+                    " expired provider calls=" + source.mResolver.getExpiredCount());
+            mHealth.get(i).dump(pw, prefix + "  ");
+            source.dump(pw, prefix + "    ");
+        }
+    }
 
-        foundAlbums.addAll(mLocalSource.findAlbums());
-        log(TAG, "found " + foundAlbums.size() + " user albums");
+    @Override
+    public Collection<AlbumData> findAlbums() {
+        log(TAG, "finding albums");
+        ArrayList<Callable<Collection<AlbumData>>> tasks =
+                new ArrayList<Callable<Collection<AlbumData>>>(mSources.size());
+        for (final PhotoSource source : mSources) {
+            tasks.add(new Callable<Collection<AlbumData>>() {
+                @Override
+                public Collection<AlbumData> call() {
+                    return source.findAlbums();
+                }
+            });
+        }
 
+        LinkedList<AlbumData> foundAlbums = new LinkedList<AlbumData>();
+        for (Collection<AlbumData> albums : fanOut(tasks)) {
+            if (albums != null) {
+                foundAlbums.addAll(albums);
+            }
+        }
+        log(TAG, "found " + foundAlbums.size() + " albums");
         return foundAlbums;
     }
 
     @Override
     protected Collection<ImageData> findImages(int howMany) {
         log(TAG, "finding images");
+        int[] quotas = getQuotas(howMany);
+        ArrayList<Callable<Collection<ImageData>>> tasks =
+                new ArrayList<Callable<Collection<ImageData>>>(mSources.size());
+        for (int i = 0; i < mSources.size(); i++) {
+            final PhotoSource source = mSources.get(i);
+            final int quota = quotas[i];
+            tasks.add(quota == 0 ? null : new Callable<Collection<ImageData>>() {
+                @Override
+                public Collection<ImageData> call() {
+                    return source.findImages(quota);
+                }
+            });
+        }
+
         LinkedList<ImageData> foundImages = new LinkedList<ImageData>();
+        for (Collection<ImageData> images : fanOut(tasks)) {
+            if (images != null) {
+                foundImages.addAll(images);
+            }
+        }
+        log(TAG, "found " + foundImages.size() + " images");
+        return foundImages;
+    }
 
-        foundImages.addAll(mPicasaSource.findImages(howMany));
-        log(TAG, "found " + foundImages.size() + " network images");
+    /**
+     * Split a request across the sources by sampling in proportion to their weight,
+     * catalog size and health. A source that has not been scanned yet is assumed to be
+     * able to fill the whole request, and every healthy source is asked for at least one
+     * image so that it can notice newly enabled albums. A source whose breaker is open
+     * gets nothing, except for a single image when it is due for a probe.
+     */
+    private int[] getQuotas(int howMany) {
+        int[] quotas = new int[mSources.size()];
+        double[] shares = new double[quotas.length];
+        int assigned = 0;
+        double total = 0.0;
+        for (int i = 0; i < quotas.length; i++) {
+            float health = mHealth.get(i).getShare();
+            if (SourceHealth.isProbe(health)) {
+                quotas[i] = 1;
+                assigned++;
+            } else if (health > 0f) {
+                int catalogSize = mSources.get(i).getCatalogSize();
+                shares[i] = (double) health * mWeights[i] *
+                        (catalogSize < 0 ? howMany : catalogSize);
+                total += shares[i];
+                quotas[i] = 1;
+                assigned++;
+            }
+        }
 
-        foundImages.addAll(mLocalSource.findImages(howMany));
-        log(TAG, "found " + foundImages.size() + " user images");
+        if (total > 0.0) {
+            AliasSampler sampler = new AliasSampler(shares);
+            for (int n = assigned; n < howMany; n++) {
+                quotas[sampler.sample(mRNG)]++;
+            }
+        }
+        for (int i = 0; i < quotas.length; i++) {
+            log(TAG, mSources.get(i).mSourceName + " quota is " + quotas[i]);
+        }
+        return quotas;
+    }
 
-        return foundImages;
+    /**
+     * Run one task per source in parallel, and collect the results that arrive before the
+     * deadline, indexed by source. Stragglers are cancelled and their slot is left null.
+     * A null task skips its source, and so does a straggler from an earlier fan-out that is
+     * still running: a source is never asked to do two things at once.
+     */
+    private <T> ArrayList<T> fanOut(List<Callable<T>> tasks) {
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        // claimed by the worker when it starts, or by us if it is cancelled before then.
+        ArrayList<AtomicBoolean> claims = new ArrayList<AtomicBoolean>(tasks.size());
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < tasks.size(); i++) {
+            final Callable<T> task = tasks.get(i);
+            final AtomicBoolean busy = mBusy[i];
+            final AtomicBoolean claimed = new AtomicBoolean();
+            Future<T> future = null;
+            if (task != null && !busy.compareAndSet(false, true)) {
+                log(TAG, mHealth.get(i).getName() + " is still busy, skipping it");
+            } else if (task != null) {
+                future = getWorkers().submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        if (!claimed.compareAndSet(false, true)) {
+                            return null;
+                        }
+                        try {
+                            return task.call();
+                        } finally {
+                            busy.set(false);
+                        }
+                    }
+                });
+            }
+            futures.add(future);
+            claims.add(claimed);
+        }
+
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        final long deadline = start + mDeadline;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<T> future = futures.get(i);
+            SourceHealth health = mHealth.get(i);
+            T result = null;
+            if (future != null) {
+                try {
+                    long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+                    result = future.get(remaining, TimeUnit.MILLISECONDS);
+                    long latency = System.currentTimeMillis() - start;
+                    if (mSources.get(i).takeErrors() > 0) {
+                        health.recordFailure(SourceHealth.FIND, latency);
+                    } else {
+                        health.recordSuccess(SourceHealth.FIND, latency);
+                    }
+                } catch (TimeoutException te) {
+                    Log.w(TAG, health.getName() + " missed its deadline, continuing without it");
+                    future.cancel(true);
+                    release(i, claims.get(i));
+                    health.recordTimeout(SourceHealth.FIND, System.currentTimeMillis() - start);
+                } catch (ExecutionException ee) {
+                    Log.w(TAG, health.getName() + " failed: " + ee.getCause());
+                    health.recordFailure(SourceHealth.FIND, System.currentTimeMillis() - start);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    future.cancel(true);
+                    release(i, claims.get(i));
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /** A source whose cancelled call never started is free again at once. */
+    private void release(int source, AtomicBoolean claimed) {
+        if (claimed.compareAndSet(false, true)) {
+            mBusy[source].set(false);
+        }
     }
 
     @Override
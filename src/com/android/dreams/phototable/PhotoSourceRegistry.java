@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The photo sources available to the plexor.
+ *
+ * Sources are registered in code with {@link #register}, or declared in the manifest
+ * with a meta-data element on the application whose name starts with
+ * {@link #META_DATA_PREFIX} and whose value is "class[,weight[,order]]".
+ * A source must have a public (Context, SharedPreferences) constructor.
+ */
+public class PhotoSourceRegistry {
+    private static final String TAG = "PhotoTable.PhotoSourceRegistry";
+
+    public static final String META_DATA_PREFIX = "com.android.dreams.phototable.source.";
+
+    // Albums from unknown sources sort between the device and the stock photos.
+    private static final int DEFAULT_ORDER = 1;
+
+    /** A registered source. */
+    public static class Entry {
+        /** Fully qualified name of the PhotoSource subclass. */
+        public final String className;
+        /** Relative share of the image queue; zero means the plexor leaves it out. */
+        public final int weight;
+        /** Position of its albums in the settings list, lowest first. */
+        public final int order;
+
+        public Entry(String className, int weight, int order) {
+            this.className = className;
+            this.weight = weight;
+            this.order = order;
+        }
+    }
+
+    private static LinkedHashMap<String, Entry> sEntries;
+    private static boolean sReadManifest;
+
+    /** Make a source available to every plexor created from now on. */
+    public static void register(Class<? extends PhotoSource> source, int weight, int order) {
+        register(new Entry(source.getName(), weight, order));
+    }
+
+    private static synchronized void register(Entry entry) {
+        getRegistered().put(entry.className, entry);
+    }
+
+    private static LinkedHashMap<String, Entry> getRegistered() {
+        if (sEntries == null) {
+            sEntries = new LinkedHashMap<String, Entry>();
+        }
+        return sEntries;
+    }
+
+    private static synchronized void registerBuiltIns(Context context) {
+        LinkedHashMap<String, Entry> entries = getRegistered();
+        Resources resources = context.getResources();
+        if (!entries.containsKey(LocalSource.class.getName())) {
+            register(LocalSource.class, resources.getInteger(R.integer.local_source_weight), 0);
+        }
+        if (!entries.containsKey(FolderSource.class.getName())) {
+            register(FolderSource.class, resources.getInteger(R.integer.folder_source_weight), 0);
+        }
+        if (!entries.containsKey(ZipSource.class.getName())) {
+            register(ZipSource.class, resources.getInteger(R.integer.zip_source_weight), 0);
+        }
+        if (!entries.containsKey(HttpSource.class.getName())) {
+            register(HttpSource.class, resources.getInteger(R.integer.http_source_weight), 1);
+        }
+        if (!entries.containsKey(PicasaSource.class.getName())) {
+            register(PicasaSource.class, resources.getInteger(R.integer.picasa_source_weight), 1);
+        }
+        if (!entries.containsKey(StockSource.class.getName())) {
+            // only the fallback, never plexed.
+            register(StockSource.class, 0, 2);
+        }
+    }
+
+    private static synchronized void readManifest(Context context) {
+        if (sReadManifest) {
+            return;
+        }
+        sReadManifest = true;
+        Bundle metaData = null;
+        try {
+            ApplicationInfo info = context.getPackageManager().getApplicationInfo(
+                    context.getPackageName(), PackageManager.GET_META_DATA);
+            metaData = info.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "can't read our own manifest: " + e);
+        }
+        if (metaData == null) {
+            return;
+        }
+        for (String key : metaData.keySet()) {
+            if (key.startsWith(META_DATA_PREFIX)) {
+                Entry entry = parse(metaData.getString(key));
+                if (entry != null) {
+                    register(entry);
+                } else {
+                    Log.w(TAG, "ignoring malformed source declaration: " + key);
+                }
+            }
+        }
+    }
+
+    private static Entry parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        try {
+            int weight = (parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+            int order = (parts.length > 2 ? Integer.parseInt(parts[2].trim()) : DEFAULT_ORDER);
+            return new Entry(parts[0].trim(), weight, order);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /** All registered sources, built-in ones first. */
+    public static synchronized List<Entry> getEntries(Context context) {
+        registerBuiltIns(context);
+        readManifest(context);
+        return new ArrayList<Entry>(getRegistered().values());
+    }
+
+    /** Sort position for the albums of a source, given its class name. */
+    public static synchronized int getOrder(String className) {
+        Entry entry = getRegistered().get(className);
+        return (entry == null ? DEFAULT_ORDER : entry.order);
+    }
+
+    /** Instantiate a registered source, or return null if it can't be constructed. */
+    public static PhotoSource create(Entry entry, Context context, SharedPreferences settings) {
+        try {
+            Class<? extends PhotoSource> source =
+                    Class.forName(entry.className).asSubclass(PhotoSource.class);
+            return source.getConstructor(Context.class, SharedPreferences.class)
+                    .newInstance(context, settings);
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, "can't find " + entry.className);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, entry.className + " has no (Context, SharedPreferences) constructor");
+        } catch (InstantiationException e) {
+            Log.w(TAG, "can't create " + entry.className + ": " + e);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "can't create " + entry.className + ": " + e);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "can't create " + entry.className + ": " + e.getCause());
+        } catch (ClassCastException e) {
+            Log.w(TAG, entry.className + " is not a PhotoSource");
+        }
+        return null;
+    }
+}
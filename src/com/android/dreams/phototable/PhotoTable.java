@@ -19,18 +19,22 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.service.dreams.DreamService;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.KeyEvent;
-import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
@@ -41,7 +45,9 @@ import android.view.animation.Interpolator;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -58,7 +64,7 @@ public class PhotoTable extends FrameLayout {
     class Launcher implements Runnable {
         @Override
         public void run() {
-            PhotoTable.this.scheduleNext(mDropPeriod);
+            PhotoTable.this.scheduleNext(mGovernor.getDropPeriod());
             PhotoTable.this.launch();
         }
     }
@@ -84,9 +90,9 @@ public class PhotoTable extends FrameLayout {
     private final Launcher mLauncher;
     private final FocusReaper mFocusReaper;
     private final SelectionReaper mSelectionReaper;
-    private final LinkedList<View> mOnTable;
-    private final int mDropPeriod;
-    private final int mFastDropPeriod;
+    private final TableScene mScene;
+    private View[] mSlotPhotos;
+    private final FrameStats mFrameStats;
     private final int mNowDropDelay;
     private final float mImageRatio;
     private final float mTableRatio;
@@ -94,10 +100,9 @@ public class PhotoTable extends FrameLayout {
     private final float mThrowRotation;
     private final float mThrowSpeed;
     private final boolean mTapToExit;
-    private final int mTableCapacity;
-    private final int mRedealCount;
+    private final TableGovernor mGovernor;
     private final int mInset;
-    private final PhotoSource mPhotoSource;
+    private final PhotoSourcePlexor mPhotoSource;
     private final Resources mResources;
     private final Interpolator mThrowInterpolator;
     private final Interpolator mDropInterpolator;
@@ -106,6 +111,12 @@ public class PhotoTable extends FrameLayout {
     private final KeyboardInterpreter mKeyboardInterpreter;
     private final boolean mStoryModeEnabled;
     private final boolean mBackgroudOptimization;
+    private final boolean mTableSurface;
+    private final boolean mPrecomposite;
+    private final boolean mDualResolution;
+    private final boolean mCoveragePlacement;
+    private final int mPlacementResolution;
+    private final int mPlacementCandidates;
     private final long mPickUpDuration;
     private final int mMaxSelectionTime;
     private final int mMaxFocusTime;
@@ -123,16 +134,23 @@ public class PhotoTable extends FrameLayout {
     private View mFocus;
     private int mHighlightColor;
     private ViewGroup mBackground;
+    private TableSurface mSurface;
+    private View mBackgroundLayer;
     private ViewGroup mStageLeft;
     private View mScrim;
     private final Set<View> mWaitingToJoinBackground;
+    private final LinkedList<ImageView> mViewPool;
+    private final Drawable mEmptyPhoto;
+    private int mViewsCreated;
+    private int mViewsReused;
+    private int mUpgrades;
+    private int mDowngrades;
+    private final PointF mDropPoint;
 
     public PhotoTable(Context context, AttributeSet as) {
         super(context, as);
         mResources = getResources();
         mInset = mResources.getDimensionPixelSize(R.dimen.photo_inset);
-        mDropPeriod = mResources.getInteger(R.integer.table_drop_period);
-        mFastDropPeriod = mResources.getInteger(R.integer.fast_drop);
         mNowDropDelay = mResources.getInteger(R.integer.now_drop);
         mImageRatio = mResources.getInteger(R.integer.image_ratio) / 1000000f;
         mTableRatio = mResources.getInteger(R.integer.table_ratio) / 1000000f;
@@ -140,11 +158,19 @@ public class PhotoTable extends FrameLayout {
         mThrowSpeed = mResources.getDimension(R.dimen.image_throw_speed);
         mPickUpDuration = mResources.getInteger(R.integer.photo_pickup_duration);
         mThrowRotation = (float) mResources.getInteger(R.integer.image_throw_rotatioan);
-        mTableCapacity = mResources.getInteger(R.integer.table_capacity);
-        mRedealCount = mResources.getInteger(R.integer.redeal_count);
+        mGovernor = new TableGovernor(mResources);
         mTapToExit = mResources.getBoolean(R.bool.enable_tap_to_exit);
         mStoryModeEnabled = mResources.getBoolean(R.bool.enable_story_mode);
-        mBackgroudOptimization = mResources.getBoolean(R.bool.enable_background_optimization);
+        mTableSurface = mResources.getBoolean(R.bool.enable_table_surface);
+        mBackgroudOptimization = mTableSurface ||
+                mResources.getBoolean(R.bool.enable_background_optimization);
+        mPrecomposite = mResources.getBoolean(R.bool.enable_precomposited_frames);
+        // a frame drawn into a small bitmap would grow with it.
+        mDualResolution = !mPrecomposite &&
+                mResources.getBoolean(R.bool.enable_table_size_decode);
+        mCoveragePlacement = mResources.getBoolean(R.bool.enable_coverage_placement);
+        mPlacementResolution = mResources.getInteger(R.integer.placement_resolution);
+        mPlacementCandidates = mResources.getInteger(R.integer.placement_candidates);
         mHighlightColor = mResources.getColor(R.color.highlight_color);
         mMaxSelectionTime = mResources.getInteger(R.integer.max_selection_time);
         mMaxFocusTime = mResources.getInteger(R.integer.max_focus_time);
@@ -153,10 +179,16 @@ public class PhotoTable extends FrameLayout {
                 mResources.getInteger(R.integer.soft_landing_distance) / 1000000f);
         mDropInterpolator = new DecelerateInterpolator(
                 (float) mResources.getInteger(R.integer.drop_deceleration_exponent));
-        mOnTable = new LinkedList<View>();
+        mScene = new TableScene(mGovernor.getMaxCapacity() + 1,
+                new TablePlacer(mPlacementResolution, mPlacementCandidates, sRNG));
+        mSlotPhotos = new View[mScene.getCapacity()];
         mPhotoSource = new PhotoSourcePlexor(getContext(),
                 getContext().getSharedPreferences(PhotoTableDreamSettings.PREFS_NAME, 0));
         mWaitingToJoinBackground = new HashSet<View>();
+        mViewPool = new LinkedList<ImageView>();
+        mEmptyPhoto = new ColorDrawable(Color.TRANSPARENT);
+        mDropPoint = new PointF();
+        mFrameStats = new FrameStats(context);
         mLauncher = new Launcher();
         mFocusReaper = new FocusReaper();
         mSelectionReaper = new SelectionReaper();
@@ -171,6 +203,15 @@ public class PhotoTable extends FrameLayout {
     @Override
     public void onFinishInflate() {
         mBackground = (ViewGroup) findViewById(R.id.background);
+        mSurface = (TableSurface) findViewById(R.id.surface);
+        if (mTableSurface) {
+            mSurface.setTable(this, mScene);
+            mSurface.setCaching(mResources.getBoolean(R.bool.enable_surface_cache));
+            mBackgroundLayer = mSurface;
+        } else {
+            mSurface.setVisibility(View.GONE);
+            mBackgroundLayer = mBackground;
+        }
         mStageLeft = (ViewGroup) findViewById(R.id.stageleft);
         mScrim = findViewById(R.id.scrim);
     }
@@ -191,6 +232,9 @@ public class PhotoTable extends FrameLayout {
         if (hasSelection()) {
             dropOnTable(mSelection);
             mPhotoSource.donePaging(getBitmap(mSelection));
+            if (mSelection != mFocus) {
+                downgrade(mSelection);
+            }
             if (mStoryModeEnabled) {
                 fadeInBackground(mSelection);
             }
@@ -255,6 +299,7 @@ public class PhotoTable extends FrameLayout {
             mSelection.setAlpha(1f);
             moveToTopOfPile(mSelection);
             pickUp(mSelection);
+            upgrade(mSelection);
             if (mStoryModeEnabled) {
                 for (int slot = 0; slot < mOnDeck.length; slot++) {
                     if (mLoadOnDeckTasks[slot] != null &&
@@ -281,13 +326,19 @@ public class PhotoTable extends FrameLayout {
     public void clearFocus() {
         if (hasFocus()) {
             setHighlight(getFocus(), false);
+            if (getFocus() != getSelection()) {
+                downgrade(getFocus());
+                if (mTableSurface) {
+                    mWaitingToJoinBackground.add(getFocus());
+                }
+            }
         }
         mFocus = null;
     }
 
     public void setDefaultFocus() {
-        if (mOnTable.size() > 0) {
-            setFocus(mOnTable.getLast());
+        if (mScene.size() > 0) {
+            setFocus(getPhoto(mScene.getTop()));
         }
     }
 
@@ -297,6 +348,7 @@ public class PhotoTable extends FrameLayout {
         mFocus = focus;
         moveToTopOfPile(focus);
         setHighlight(focus, true);
+        upgrade(focus);
         scheduleFocusReaper(mMaxFocusTime);
     }
 
@@ -336,20 +388,58 @@ public class PhotoTable extends FrameLayout {
         return p;
     }
 
-    private double cross(double[] a, double[] b) {
-        return a[0] * b[1] - a[1] * b[0];
+    /** The view showing the photo in a slot of the scene. */
+    private View getPhoto(int slot) {
+        return mSlotPhotos[slot];
+    }
+
+    /** The photo's slot in the scene, or NONE if it is not on the table. */
+    private int getSlot(View photo) {
+        Integer slot = (Integer) photo.getTag(R.id.photo_slot);
+        if (slot == null || !mScene.contains(slot.intValue()) ||
+                getPhoto(slot.intValue()) != photo) {
+            return TableScene.NONE;
+        }
+        return slot.intValue();
+    }
+
+    /** Put the photo on top of the pile, where it will be the last to be cleared away. */
+    private void putOnTable(View photo) {
+        int slot = getSlot(photo);
+        if (slot == TableScene.NONE) {
+            int width = ((Integer) photo.getTag(R.id.photo_width)).intValue();
+            int height = ((Integer) photo.getTag(R.id.photo_height)).intValue();
+            slot = mScene.add(width, height);
+            if (slot >= mSlotPhotos.length) {
+                mSlotPhotos = Arrays.copyOf(mSlotPhotos, mScene.getCapacity());
+            }
+            mSlotPhotos[slot] = photo;
+            mScene.setTransform(slot, photo.getX(), photo.getY(),
+                    photo.getRotation(), photo.getScaleX());
+            photo.setTag(R.id.photo_slot, Integer.valueOf(slot));
+        } else {
+            mScene.moveToTop(slot);
+        }
     }
 
-    private double norm(double[] a) {
-        return Math.hypot(a[0], a[1]);
+    private void takeOffTable(View photo) {
+        int slot = getSlot(photo);
+        if (slot != TableScene.NONE) {
+            if (mTableSurface) {
+                mSurface.lift(slot);
+            }
+            mScene.remove(slot);
+            mSlotPhotos[slot] = null;
+        }
+        photo.setTag(R.id.photo_slot, null);
     }
 
-    private double[] getCenter(View photo) {
-        float width = (float) ((Integer) photo.getTag(R.id.photo_width)).intValue();
-        float height = (float) ((Integer) photo.getTag(R.id.photo_height)).intValue();
-        double[] center = { photo.getX() + width / 2f,
-                            - (photo.getY() + height / 2f) };
-        return center;
+    /** Record where a photo on the table will come to rest. */
+    private void setTableTransform(View photo, float x, float y, float rotation, float scale) {
+        int slot = getSlot(photo);
+        if (slot != TableScene.NONE) {
+            mScene.setTransform(slot, x, y, rotation, scale);
+        }
     }
 
     public View moveFocus(View focus, float direction) {
@@ -358,39 +448,25 @@ public class PhotoTable extends FrameLayout {
 
     public View moveFocus(View focus, float direction, float angle) {
         if (focus == null) {
-            if (mOnTable.size() > 0) {
-                setFocus(mOnTable.getLast());
+            if (mScene.size() > 0) {
+                setFocus(getPhoto(mScene.getTop()));
             }
         } else {
-            final double alpha = Math.toRadians(direction);
-            final double beta = Math.toRadians(Math.min(angle, 180f) / 2f);
-            final double[] left = { Math.sin(alpha - beta),
-                                    Math.cos(alpha - beta) };
-            final double[] right = { Math.sin(alpha + beta),
-                                     Math.cos(alpha + beta) };
-            final double[] a = getCenter(focus);
-            View bestFocus = null;
-            double bestDistance = Double.MAX_VALUE;
-            for (View candidate: mOnTable) {
-                if (candidate != focus) {
-                    final double[] b = getCenter(candidate);
-                    final double[] delta = { b[0] - a[0],
-                                             b[1] - a[1] };
-                    if (cross(delta, left) > 0.0 && cross(delta, right) < 0.0) {
-                        final double distance = norm(delta);
-                        if (bestDistance > distance) {
-                            bestDistance = distance;
-                            bestFocus = candidate;
-                        }
-                    }
-                }
+            final int slot = getSlot(focus);
+            final int best;
+            if (slot != TableScene.NONE) {
+                best = mScene.findNearest(slot, direction, angle);
+            } else {
+                float x = focus.getX() + ((Integer) focus.getTag(R.id.photo_width)).intValue() / 2f;
+                float y = focus.getY() + ((Integer) focus.getTag(R.id.photo_height)).intValue() / 2f;
+                best = mScene.getIndex().findNearest(x, y, slot, direction, angle);
             }
-            if (bestFocus == null) {
+            if (best == TableScene.NONE) {
                 if (angle < 180f) {
                     return moveFocus(focus, direction, 180f);
                 }
             } else {
-                setFocus(bestFocus);
+                setFocus(getPhoto(best));
             }
         }
         return getFocus();
@@ -432,9 +508,15 @@ public class PhotoTable extends FrameLayout {
         mLongSide = (int) (mImageRatio * Math.max(mWidth, mHeight));
         mShortSide = (int) (mImageRatio * Math.min(mWidth, mHeight));
 
+        if (changed) {
+            mScene.resize(mWidth, mHeight, mTableRatio * Math.max(mWidth, mHeight));
+        }
+
         boolean isLandscape = mWidth > mHeight;
         if (mIsLandscape != isLandscape) {
-            for (View photo: mOnTable) {
+            for (int slot = mScene.getBottom(); slot != TableScene.NONE;
+                    slot = mScene.getAbove(slot)) {
+                View photo = getPhoto(slot);
                 if (photo != getSelection()) {
                     dropOnTable(photo);
                 }
@@ -457,67 +539,174 @@ public class PhotoTable extends FrameLayout {
         return true;
     }
 
-    /** Put a nice border on the bitmap. */
-    private static View applyFrame(final PhotoTable table, final BitmapFactory.Options options,
-            Bitmap decodedPhoto) {
-        LayoutInflater inflater = (LayoutInflater) table.getContext()
-            .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View photo = inflater.inflate(R.layout.photo, null);
-        ImageView image = (ImageView) photo;
+    /**
+     * Draw the frame into a copy of the photo, so that it can be shown as a single bitmap.
+     * Runs on the decode thread, with a frame drawable owned by the caller.
+     */
+    private Bitmap precompose(Bitmap decodedPhoto, Drawable frame) {
+        if (decodedPhoto == null) {
+            return null;
+        }
+        Bitmap framed = null;
+        try {
+            framed = Bitmap.createBitmap(decodedPhoto.getWidth() + 2 * mInset,
+                    decodedPhoto.getHeight() + 2 * mInset, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(framed);
+            canvas.drawBitmap(decodedPhoto, mInset, mInset, null);
+            frame.setBounds(0, 0, framed.getWidth(), framed.getHeight());
+            frame.draw(canvas);
+            mPhotoSource.rekey(decodedPhoto, framed);
+        } catch (OutOfMemoryError ome) {
+            log("no memory to frame the photo: %s", ome);
+        }
+        mPhotoSource.recycle(decodedPhoto);
+        return framed;
+    }
+
+    /** The picture inset in a frame, or an empty slot for one. */
+    private LayerDrawable newFramedDrawable(Drawable picture) {
         Drawable[] layers = new Drawable[2];
-        int photoWidth = options.outWidth;
-        int photoHeight = options.outHeight;
+        layers[0] = (picture == null ? mEmptyPhoto : picture);
+        layers[1] = mResources.getDrawable(R.drawable.frame);
+        LayerDrawable layerList = new LayerDrawable(layers);
+        layerList.setId(0, R.id.photo_picture_layer);
+        layerList.setId(1, R.id.photo_frame_layer);
+        layerList.setLayerInset(0, mInset, mInset, mInset, mInset);
+        return layerList;
+    }
+
+    /** A photo view, with an empty picture slot and a frame unless frames are precomposed. */
+    private ImageView newPhotoView() {
+        ImageView photo = new ImageView(getContext());
+        photo.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+        if (!mPrecomposite) {
+            photo.setImageDrawable(newFramedDrawable(null));
+        }
+        photo.setTag(R.id.photo_touch_listener, new PhotoTouchListener(getContext(), this));
+        mViewsCreated++;
+        return photo;
+    }
+
+    /** How much smaller than full size photos are decoded for the table. */
+    private float getTableReduction() {
+        return (mDualResolution ? Math.min(1f, mTableRatio / mImageRatio) : 1f);
+    }
+
+    /** A picture that lays out at full size, however much smaller its bitmap was decoded. */
+    private BitmapDrawable newPicture(Bitmap bitmap, float reduction) {
+        BitmapDrawable picture = new BitmapDrawable(mResources, bitmap);
+        if (reduction < 1f) {
+            bitmap.setDensity(DisplayMetrics.DENSITY_DEFAULT);
+            picture.setTargetDensity(Math.round(DisplayMetrics.DENSITY_DEFAULT / reduction));
+        }
+        return picture;
+    }
+
+    private void setPicture(ImageView photo, Drawable picture) {
+        LayerDrawable layers = (LayerDrawable) photo.getDrawable();
+        layers.setDrawableByLayerId(R.id.photo_picture_layer, picture);
+        // have the view measure the new picture.
+        photo.setImageDrawable(null);
+        photo.setImageDrawable(layers);
+    }
+
+    /** Put a nice border on the bitmap, reusing a photo view from the pool if there is one. */
+    private View applyFrame(final BitmapFactory.Options options, Bitmap decodedPhoto,
+            float reduction) {
         if (decodedPhoto == null || options.outWidth <= 0 || options.outHeight <= 0) {
-            photo = null;
+            return null;
+        }
+        ImageView photo = mViewPool.poll();
+        if (photo == null) {
+            photo = newPhotoView();
         } else {
-            decodedPhoto.setHasMipMap(true);
-            layers[0] = new BitmapDrawable(table.mResources, decodedPhoto);
-            layers[1] = table.mResources.getDrawable(R.drawable.frame);
-            LayerDrawable layerList = new LayerDrawable(layers);
-            layerList.setLayerInset(0, table.mInset, table.mInset,
-                                    table.mInset, table.mInset);
-            image.setImageDrawable(layerList);
+            mViewsReused++;
+        }
+        decodedPhoto.setHasMipMap(true);
+        if (mPrecomposite) {
+            // the frame is already in the bitmap.
+            photo.setImageDrawable(new BitmapDrawable(mResources, decodedPhoto));
+        } else {
+            setPicture(photo, newPicture(decodedPhoto, reduction));
+        }
+        if (reduction < 1f) {
+            photo.setTag(R.id.photo_small_picture, decodedPhoto);
+        }
 
-            photo.setTag(R.id.photo_width, Integer.valueOf(photoWidth));
-            photo.setTag(R.id.photo_height, Integer.valueOf(photoHeight));
+        // the size it has on screen, not the size it was decoded at.
+        photo.setTag(R.id.photo_width, Integer.valueOf(Math.round(options.outWidth / reduction)));
+        photo.setTag(R.id.photo_height,
+                Integer.valueOf(Math.round(options.outHeight / reduction)));
 
-            photo.setOnTouchListener(new PhotoTouchListener(table.getContext(),
-                                                            table));
-        }
+        photo.setOnTouchListener((PhotoTouchListener) photo.getTag(R.id.photo_touch_listener));
         return photo;
     }
 
-    private class LoadNaturalSiblingTask extends AsyncTask<View, Void, View> {
+    /** Return a photo view to the pool, without its picture. */
+    private void releasePhotoView(ImageView photo) {
+        mWaitingToJoinBackground.remove(photo);
+        if (mPrecomposite) {
+            photo.setImageDrawable(null);
+        } else {
+            LayerDrawable layers = (LayerDrawable) photo.getDrawable();
+            layers.setDrawableByLayerId(R.id.photo_picture_layer, mEmptyPhoto);
+            layers.findDrawableByLayerId(R.id.photo_frame_layer).clearColorFilter();
+        }
+        photo.setTag(R.id.photo_small_picture, null);
+        photo.setTag(R.id.photo_upgrade, null);
+        photo.setOnTouchListener(null);
+        photo.setAlpha(1f);
+        photo.setScaleX(1f);
+        photo.setScaleY(1f);
+        photo.setRotation(0f);
+        photo.setRotationY(0f);
+        photo.setTranslationX(0f);
+        photo.setTranslationY(0f);
+        if (mViewPool.size() < mGovernor.getCapacity()) {
+            mViewPool.offer(photo);
+        }
+    }
+
+    private class LoadNaturalSiblingTask extends AsyncTask<View, Void, Bitmap> {
         private final BitmapFactory.Options mOptions;
         private final int mSlot;
+        private final Drawable mFrame;
+        private final float mReduction;
         private View mParent;
 
         public LoadNaturalSiblingTask (int slot) {
             mOptions = new BitmapFactory.Options();
             mOptions.inTempStorage = new byte[32768];
             mSlot = slot;
+            mFrame = (mPrecomposite ? mResources.getDrawable(R.drawable.frame) : null);
+            // like any other photo, full size only once it is selected.
+            mReduction = getTableReduction();
         }
 
         @Override
-        public View doInBackground(View... views) {
+        public Bitmap doInBackground(View... views) {
             log("load natural %s", (mSlot == NEXT ? "next" : "previous"));
             final PhotoTable table = PhotoTable.this;
             mParent = views[0];
             final Bitmap current = getBitmap(mParent);
+            final int longSide = (int) (mReduction * table.mLongSide);
+            final int shortSide = (int) (mReduction * table.mShortSide);
             Bitmap decodedPhoto;
             if (mSlot == NEXT) {
                 decodedPhoto = table.mPhotoSource.naturalNext(current,
-                    mOptions, table.mLongSide, table.mShortSide);
+                    mOptions, longSide, shortSide);
             } else {
                 decodedPhoto = table.mPhotoSource.naturalPrevious(current,
-                    mOptions, table.mLongSide, table.mShortSide);
+                    mOptions, longSide, shortSide);
             }
-            return applyFrame(PhotoTable.this, mOptions, decodedPhoto);
+            return (mPrecomposite ? precompose(decodedPhoto, mFrame) : decodedPhoto);
         }
 
         @Override
-        public void onPostExecute(View photo) {
+        public void onPostExecute(Bitmap decodedPhoto) {
+            View photo = applyFrame(mOptions, decodedPhoto, mReduction);
             if (photo != null) {
+                mFrameStats.noteDecode();
                 if (hasSelection() && getSelection() == mParent) {
                     log("natural %s being rendered", (mSlot == NEXT ? "next" : "previous"));
                     PhotoTable.this.addView(photo, new LayoutParams(LayoutParams.WRAP_CONTENT,
@@ -544,27 +733,36 @@ public class PhotoTable extends FrameLayout {
         }
     };
 
-    private class PhotoLaunchTask extends AsyncTask<Void, Void, View> {
+    private class PhotoLaunchTask extends AsyncTask<Void, Void, Bitmap> {
         private final BitmapFactory.Options mOptions;
+        private final Drawable mFrame;
+        private final float mReduction;
+        private long mDecodeMillis;
 
         public PhotoLaunchTask () {
             mOptions = new BitmapFactory.Options();
             mOptions.inTempStorage = new byte[32768];
+            mFrame = (mPrecomposite ? mResources.getDrawable(R.drawable.frame) : null);
+            mReduction = getTableReduction();
         }
 
         @Override
-        public View doInBackground(Void... unused) {
+        public Bitmap doInBackground(Void... unused) {
             log("load a new photo");
             final PhotoTable table = PhotoTable.this;
-            return applyFrame(PhotoTable.this, mOptions,
-                 table.mPhotoSource.next(mOptions,
-                      table.mLongSide, table.mShortSide));
+            final long start = SystemClock.uptimeMillis();
+            Bitmap decodedPhoto = table.mPhotoSource.next(mOptions,
+                    (int) (mReduction * table.mLongSide), (int) (mReduction * table.mShortSide));
+            mDecodeMillis = SystemClock.uptimeMillis() - start;
+            return (mPrecomposite ? precompose(decodedPhoto, mFrame) : decodedPhoto);
         }
 
         @Override
-        public void onPostExecute(View photo) {
+        public void onPostExecute(Bitmap decodedPhoto) {
+            View photo = applyFrame(mOptions, decodedPhoto, mReduction);
             if (photo != null) {
                 final PhotoTable table = PhotoTable.this;
+                mFrameStats.noteDecode();
 
                 table.addView(photo, new LayoutParams(LayoutParams.WRAP_CONTENT,
                     LayoutParams.WRAP_CONTENT));
@@ -580,15 +778,18 @@ public class PhotoTable extends FrameLayout {
                 log("drop it");
                 table.throwOnTable(photo);
 
-                if (mOnTable.size() > mTableCapacity) {
-                    int targetSize = Math.max(0, mOnTable.size() - mRedealCount);
-                    while (mOnTable.size() > targetSize) {
-                        fadeAway(mOnTable.poll(), false);
+                mGovernor.onDecoded(mDecodeMillis);
+                mGovernor.update(mFrameStats.getFrames(), mFrameStats.getDropped(),
+                        getBitmapBytesOnTable());
+                if (mScene.size() > mGovernor.getCapacity()) {
+                    int targetSize = Math.max(0, mScene.size() - mGovernor.getRedealCount());
+                    while (mScene.size() > targetSize) {
+                        fadeAway(getPhoto(mScene.getBottom()), false);
                     }
                 }
 
-                if(table.mOnTable.size() < table.mTableCapacity) {
-                    table.scheduleNext(table.mFastDropPeriod);
+                if(table.mScene.size() < table.mGovernor.getCapacity()) {
+                    table.scheduleNext(table.mGovernor.getFastDropPeriod());
                 }
             }
         }
@@ -612,7 +813,7 @@ public class PhotoTable extends FrameLayout {
     public void fadeOutBackground(final View photo) {
         resolveBackgroundQueue();
         if (mBackgroudOptimization) {
-            mBackground.animate()
+            mBackgroundLayer.animate()
                     .withLayer()
                     .setDuration(mPickUpDuration)
                     .alpha(0f);
@@ -633,7 +834,7 @@ public class PhotoTable extends FrameLayout {
     public void fadeInBackground(final View photo) {
         if (mBackgroudOptimization) {
             mWaitingToJoinBackground.add(photo);
-            mBackground.animate()
+            mBackgroundLayer.animate()
                     .withLayer()
                     .setDuration(mPickUpDuration)
                     .alpha(1f)
@@ -669,10 +870,11 @@ public class PhotoTable extends FrameLayout {
     /** Dispose of the photo gracefully, in case we can see some of it. */
     public void fadeAway(final View photo, final boolean replace) {
         // fade out of view
-        mOnTable.remove(photo);
+        takeOffTable(photo);
         exitStageLeft(photo);
         photo.setOnTouchListener(null);
         photo.animate().cancel();
+        mFrameStats.begin(FrameStats.FADE_AWAY, mPickUpDuration);
         photo.animate()
                 .withLayer()
                 .alpha(0f)
@@ -695,14 +897,17 @@ public class PhotoTable extends FrameLayout {
     /** Visually on top, and also freshest, for the purposes of timeouts. */
     public void moveToTopOfPile(View photo) {
         // make this photo the last to be removed.
+        if (mTableSurface) {
+            // it might be about to move, or be highlighted.
+            moveToForeground(photo);
+        }
         if (isInBackground(photo)) {
            mBackground.bringChildToFront(photo);
         } else {
             bringChildToFront(photo);
         }
         invalidate();
-        mOnTable.remove(photo);
-        mOnTable.offer(photo);
+        putOnTable(photo);
     }
 
     /** On deck is to the left or right of the selected photo. */
@@ -721,6 +926,8 @@ public class PhotoTable extends FrameLayout {
 
             float offset = (((float) mWidth + scale * (photoWidth - 2f * mInset)) / 2f);
             x += (slot == NEXT? 1f : -1f) * offset;
+            setTableTransform(photo, x, y, 0f, scale);
+            mFrameStats.begin(FrameStats.ON_DECK, mPickUpDuration);
 
             photo.animate()
                 .withLayer()
@@ -742,15 +949,16 @@ public class PhotoTable extends FrameLayout {
         photo.setX((int) x);
         photo.setY((int) y);
         photo.setRotation((int) a);
+        setTableTransform(photo, (int) x, (int) y, (int) a, photo.getScaleX());
     }
 
     /** Wind up off screen, so we can animate in. */
     private void throwOnTable(final View photo) {
-        mOnTable.offer(photo);
         log("start offscreen");
         photo.setRotation(mThrowRotation);
         photo.setX(-mLongSide);
         photo.setY(-mLongSide);
+        putOnTable(photo);
 
         dropOnTable(photo, mThrowInterpolator);
     }
@@ -761,6 +969,7 @@ public class PhotoTable extends FrameLayout {
             final float y = photo.getY() + dy;
             photo.setX(x);
             photo.setY(y);
+            setTableTransform(photo, x, y, photo.getRotation(), photo.getScaleX());
             Log.d(TAG, "[" + photo.getX() + ", " + photo.getY() + "] + (" + dx + "," + dy + ")");
             if (drop && photoOffTable(photo)) {
                 fadeAway(photo, true);
@@ -797,6 +1006,8 @@ public class PhotoTable extends FrameLayout {
             }
         }
         moveToForeground(photo);
+        setTableTransform(photo, photo.getX() + dx, photo.getY() + dy,
+                (spin ? mThrowRotation : photo.getRotation()), photo.getScaleX());
         ViewPropertyAnimator animator = photo.animate()
                 .withLayer()
                 .xBy(dx)
@@ -816,6 +1027,13 @@ public class PhotoTable extends FrameLayout {
                         fadeAway(photo, true);
                     }
                 });
+        } else if (mTableSurface) {
+            animator.withEndAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWaitingToJoinBackground.add(photo);
+                    }
+                });
         }
     }
     public boolean photoOffTable(final View photo) {
@@ -837,22 +1055,43 @@ public class PhotoTable extends FrameLayout {
 
     /** Animate to a random place and orientation, down on the table (visually small). */
     public void dropOnTable(final View photo, final Interpolator interpolator) {
+        if (mTableSurface) {
+            moveToForeground(photo);
+        }
         float angle = randfrange(-mImageRotationLimit, mImageRotationLimit);
-        PointF p = randMultiDrop(sRNG.nextInt(),
-                                 (float) sRNG.nextGaussian(), (float) sRNG.nextGaussian(),
-                                 mWidth, mHeight);
-        float x = p.x;
-        float y = p.y;
+        float x;
+        float y;
+        if (mCoveragePlacement) {
+            final float scale = mTableRatio / mImageRatio;
+            final float width = ((Integer) photo.getTag(R.id.photo_width)).intValue();
+            final float height = ((Integer) photo.getTag(R.id.photo_height)).intValue();
+            final TablePlacer placer = mScene.getPlacer();
+            final int slot = getSlot(photo);
+            if (slot != TableScene.NONE) {
+                // don't shy away from where this photo is now.
+                placer.remove(slot);
+            }
+            placer.choose(scale * width / 2f, scale * height / 2f, mDropPoint);
+            x = mDropPoint.x - width / 2f;
+            y = mDropPoint.y - height / 2f;
+            log("place it at %f, %f", mDropPoint.x, mDropPoint.y);
+        } else {
+            PointF p = randMultiDrop(sRNG.nextInt(),
+                                     (float) sRNG.nextGaussian(), (float) sRNG.nextGaussian(),
+                                     mWidth, mHeight);
+            x = p.x;
+            y = p.y;
+
+            log("drop it at %f, %f", x, y);
 
-        log("drop it at %f, %f", x, y);
+            x -= mLongSide / 2f;
+            y -= mShortSide / 2f;
+            log("fixed offset is %f, %f ", x, y);
+        }
 
         float x0 = photo.getX();
         float y0 = photo.getY();
 
-        x -= mLongSide / 2f;
-        y -= mShortSide / 2f;
-        log("fixed offset is %f, %f ", x, y);
-
         float dx = x - x0;
         float dy = y - y0;
 
@@ -863,6 +1102,9 @@ public class PhotoTable extends FrameLayout {
         log("animate it");
         // toss onto table
         resolveBackgroundQueue();
+        setTableTransform(photo, x, y, angle, mTableRatio / mImageRatio);
+        mFrameStats.begin(interpolator == mThrowInterpolator ?
+                FrameStats.THROW : FrameStats.DROP, duration);
         photo.animate()
             .withLayer()
             .scaleX(mTableRatio / mImageRatio)
@@ -881,7 +1123,14 @@ public class PhotoTable extends FrameLayout {
     }
 
     private void moveToBackground(View photo) {
-        if (mBackgroudOptimization && !isInBackground(photo)) {
+        if (mTableSurface) {
+            int slot = getSlot(photo);
+            if (slot != TableScene.NONE && !isInBackground(photo) &&
+                    photo != mSelection && photo != mFocus && isAtRest(photo, slot)) {
+                mSurface.settle(slot, (ImageView) photo);
+                removeViewFromParent(photo);
+            }
+        } else if (mBackgroudOptimization && !isInBackground(photo)) {
             removeViewFromParent(photo);
             mBackground.addView(photo, new LayoutParams(LayoutParams.WRAP_CONTENT,
                     LayoutParams.WRAP_CONTENT));
@@ -902,7 +1151,11 @@ public class PhotoTable extends FrameLayout {
     }
 
     private void moveToForeground(View photo) {
-        if (mBackgroudOptimization && isInBackground(photo)) {
+        if (mTableSurface && isInBackground(photo)) {
+            mSurface.lift(getSlot(photo));
+            addView(photo, new LayoutParams(LayoutParams.WRAP_CONTENT,
+                    LayoutParams.WRAP_CONTENT));
+        } else if (mBackgroudOptimization && isInBackground(photo)) {
             mBackground.removeView(photo);
             addView(photo, new LayoutParams(LayoutParams.WRAP_CONTENT,
                     LayoutParams.WRAP_CONTENT));
@@ -910,9 +1163,25 @@ public class PhotoTable extends FrameLayout {
     }
 
     private boolean isInBackground(View photo) {
+        if (mTableSurface) {
+            return mSurface.isSettled(getSlot(photo));
+        }
         return mBackgroudOptimization && mBackground.indexOfChild(photo) != -1;
     }
 
+    /** Has the photo finished moving to where the scene says it rests? */
+    private boolean isAtRest(View photo, int slot) {
+        return Math.abs(photo.getX() - mScene.getX(slot)) < 0.5f &&
+                Math.abs(photo.getY() - mScene.getY(slot)) < 0.5f &&
+                Math.abs(photo.getScaleX() - mScene.getScale(slot)) < 0.001f;
+    }
+
+    /** Bring a photo at rest on the surface back to life, to be touched. */
+    public void liftFromSurface(View photo) {
+        moveToForeground(photo);
+        bringChildToFront(photo);
+    }
+
     /** wrap all orientations to the interval [-180, 180). */
     private float wrapAngle(float angle) {
         float result = angle + 180;
@@ -939,6 +1208,8 @@ public class PhotoTable extends FrameLayout {
         // lift up to the glass for a good look
         mWaitingToJoinBackground.remove(photo);
         moveToForeground(photo);
+        setTableTransform(photo, x, y, 0f, scale);
+        mFrameStats.begin(FrameStats.PICK_UP, mPickUpDuration);
         photo.animate()
             .withLayer()
             .rotation(0f)
@@ -962,27 +1233,136 @@ public class PhotoTable extends FrameLayout {
         if (photo == null) {
             return null;
         }
-        ImageView image = (ImageView) photo;
-        LayerDrawable layers = (LayerDrawable) image.getDrawable();
-        if (layers == null) {
-            return null;
+        Drawable picture = ((ImageView) photo).getDrawable();
+        if (picture instanceof LayerDrawable) {
+            picture = ((LayerDrawable) picture).findDrawableByLayerId(R.id.photo_picture_layer);
         }
-        BitmapDrawable bitmap = (BitmapDrawable) layers.getDrawable(0);
-        if (bitmap == null) {
+        if (!(picture instanceof BitmapDrawable)) {
             return null;
         }
-        return bitmap.getBitmap();
+        return ((BitmapDrawable) picture).getBitmap();
+    }
+
+    private long getBitmapBytesOnTable() {
+        long bytes = 0L;
+        for (int slot = mScene.getBottom(); slot != TableScene.NONE;
+                slot = mScene.getAbove(slot)) {
+            Bitmap bitmap = getBitmap(getPhoto(slot));
+            if (bitmap != null) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        return bytes;
     }
 
     private void recycle(View photo) {
         if (photo != null) {
             removeViewFromParent(photo);
-            mPhotoSource.recycle(getBitmap(photo));
+            cancelUpgrade(photo);
+            Bitmap small = (Bitmap) photo.getTag(R.id.photo_small_picture);
+            Bitmap current = getBitmap(photo);
+            if (small != null && small != current) {
+                mPhotoSource.recycle(small);
+            }
+            mPhotoSource.recycle(current);
+            releasePhotoView((ImageView) photo);
+        }
+    }
+
+    /** Swap in a full size picture for a photo that is about to be looked at closely. */
+    private void upgrade(View photo) {
+        Bitmap small = (Bitmap) photo.getTag(R.id.photo_small_picture);
+        if (small != null && getBitmap(photo) == small &&
+                photo.getTag(R.id.photo_upgrade) == null) {
+            UpgradeTask task = new UpgradeTask(photo, small);
+            photo.setTag(R.id.photo_upgrade, task);
+            task.execute();
+        }
+    }
+
+    /** Go back to the table size picture, and let the full size one go. */
+    private void downgrade(View photo) {
+        cancelUpgrade(photo);
+        Bitmap small = (Bitmap) photo.getTag(R.id.photo_small_picture);
+        Bitmap current = getBitmap(photo);
+        if (small != null && current != null && current != small) {
+            setPicture((ImageView) photo, newPicture(small, getTableReduction()));
+            mPhotoSource.recycle(current);
+            mDowngrades++;
+        }
+    }
+
+    private void cancelUpgrade(View photo) {
+        UpgradeTask task = (UpgradeTask) photo.getTag(R.id.photo_upgrade);
+        if (task != null) {
+            task.cancel(false);
+            photo.setTag(R.id.photo_upgrade, null);
+        }
+    }
+
+    private class UpgradeTask extends AsyncTask<Void, Void, Bitmap> {
+        private final BitmapFactory.Options mOptions;
+        private final View mPhoto;
+        private final Bitmap mSmall;
+
+        public UpgradeTask(View photo, Bitmap small) {
+            mOptions = new BitmapFactory.Options();
+            mOptions.inTempStorage = new byte[32768];
+            mPhoto = photo;
+            mSmall = small;
+        }
+
+        @Override
+        public Bitmap doInBackground(Void... unused) {
+            log("upgrade a photo");
+            return mPhotoSource.reload(mSmall, mOptions, mLongSide, mShortSide);
+        }
+
+        @Override
+        public void onPostExecute(Bitmap decodedPhoto) {
+            if (mPhoto.getTag(R.id.photo_upgrade) == this) {
+                mPhoto.setTag(R.id.photo_upgrade, null);
+            }
+            if (decodedPhoto == null) {
+                return;
+            }
+            if (getBitmap(mPhoto) == mSmall && (mPhoto == mSelection || mPhoto == mFocus)) {
+                decodedPhoto.setHasMipMap(true);
+                setPicture((ImageView) mPhoto, new BitmapDrawable(mResources, decodedPhoto));
+                mUpgrades++;
+            } else {
+                mPhotoSource.recycle(decodedPhoto);
+            }
+        }
+
+        @Override
+        public void onCancelled(Bitmap decodedPhoto) {
+            if (decodedPhoto != null) {
+                mPhotoSource.recycle(decodedPhoto);
+            }
         }
     }
 
     public void setHighlight(View photo, boolean highlighted) {
         ImageView image = (ImageView) photo;
+        if (mPrecomposite) {
+            // only the focused photo pays for a second layer: a tinted frame over its own.
+            Bitmap bitmap = getBitmap(photo);
+            if (bitmap == null) {
+                return;
+            }
+            Drawable picture = new BitmapDrawable(mResources, bitmap);
+            if (highlighted) {
+                LayerDrawable layers = newFramedDrawable(picture);
+                layers.setLayerInset(0, 0, 0, 0, 0);
+                layers.findDrawableByLayerId(R.id.photo_frame_layer)
+                        .setColorFilter(mHighlightColor, PorterDuff.Mode.SRC_IN);
+                image.setImageDrawable(layers);
+            } else {
+                image.setImageDrawable(picture);
+            }
+            return;
+        }
         LayerDrawable layers = (LayerDrawable) image.getDrawable();
         if (highlighted) {
             layers.getDrawable(1).setColorFilter(mHighlightColor, PorterDuff.Mode.SRC_IN);
@@ -1023,6 +1403,68 @@ public class PhotoTable extends FrameLayout {
         postDelayed(mLauncher, delay);
     }
 
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "PhotoTable:");
+        pw.println(prefix + "  on table=" + mScene.size() +
+                " capacity=" + mGovernor.getCapacity());
+        pw.println(prefix + "  photo views: created=" + mViewsCreated +
+                " reused=" + mViewsReused + " pooled=" + mViewPool.size());
+        pw.println(prefix + "  table decode=" + Math.round(100f * getTableReduction()) + "%" +
+                " upgrades=" + mUpgrades + " downgrades=" + mDowngrades);
+        pw.println(prefix + "  drawables per photo=" + (mPrecomposite ? 1 : 2) +
+                " on the table=" + (mPrecomposite ? 1 : 2) * mScene.size());
+        pw.println(prefix + "  scene: slots=" + mScene.getCapacity() +
+                " index cells=" + mScene.getIndex().getCellCount());
+        if (mTableSurface) {
+            pw.println(prefix + "  live views=" + (mScene.size() - mSurface.getSettledCount()));
+            mSurface.dump(pw, prefix + "  ");
+        }
+        pw.println(prefix + "  coverage=" + percent(mScene.getPlacer().getCoverage()) +
+                " placement=" + (mCoveragePlacement ? "coverage" : "clusters"));
+        if (mWidth > 0 && mHeight > 0) {
+            pw.print(prefix + "  simulated coverage (capacity: clusters/coverage):");
+            final int tableCapacity = mGovernor.getCapacity();
+            for (int capacity = Math.max(1, tableCapacity / 2);
+                    capacity <= 4 * tableCapacity; capacity *= 2) {
+                pw.print(" " + capacity + ": " + percent(simulateCoverage(capacity, false)) +
+                        "/" + percent(simulateCoverage(capacity, true)));
+            }
+            pw.println();
+        }
+        mGovernor.dump(pw, prefix + "  ");
+        mFrameStats.dump(pw, prefix + "  ");
+        mPhotoSource.dump(pw, prefix + "  ");
+    }
+
+    /** Deal many photos onto an empty table of this size, and see how much of it they cover. */
+    private float simulateCoverage(int capacity, boolean coverage) {
+        final float halfWidth = mTableRatio * Math.max(mWidth, mHeight) / 2f;
+        final float halfHeight = mTableRatio * Math.min(mWidth, mHeight) / 2f;
+        final Random random = new Random(capacity);
+        final TablePlacer placer =
+                new TablePlacer(mPlacementResolution, mPlacementCandidates, random);
+        placer.ensureCapacity(capacity);
+        placer.resize(mWidth, mHeight);
+        final PointF p = new PointF();
+        for (int i = 0; i < 4 * capacity; i++) {
+            if (coverage) {
+                placer.remove(i % capacity);
+                placer.choose(halfWidth, halfHeight, p);
+            } else {
+                p.set(randMultiDrop(random.nextInt(),
+                        (float) random.nextGaussian(), (float) random.nextGaussian(),
+                        mWidth, mHeight));
+            }
+            // the oldest photo makes way for each new one.
+            placer.place(i % capacity, p.x, p.y, halfWidth, halfHeight);
+        }
+        return placer.getCoverage();
+    }
+
+    private static String percent(float fraction) {
+        return Math.round(100f * fraction) + "%";
+    }
+
     private static void log(String message, Object... args) {
         if (DEBUG) {
             Formatter formatter = new Formatter();
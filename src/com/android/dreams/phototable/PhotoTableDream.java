@@ -18,6 +18,9 @@ package com.android.dreams.phototable;
 import android.content.res.Resources;
 import android.service.dreams.DreamService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Example interactive screen saver: flick photos onto a table.
  */
@@ -54,4 +57,13 @@ public class PhotoTableDream extends DreamService {
         }
         setFullscreen(true);
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        PhotoTable table = (PhotoTable) findViewById(R.id.table);
+        if (table != null) {
+            table.dump(pw, "  ");
+        }
+    }
 }
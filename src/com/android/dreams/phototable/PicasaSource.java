@@ -18,19 +18,25 @@ package com.android.dreams.phototable;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
 
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Loads images from Picasa.
@@ -47,7 +53,6 @@ public class PicasaSource extends CursorPhotoSource {
 
     private static final String PICASA_ID = "_id";
     private static final String PICASA_URL = "content_url";
-    private static final String PICASA_ROTATION = "rotation";
     private static final String PICASA_ALBUM_ID = "album_id";
     private static final String PICASA_TITLE = "title";
     private static final String PICASA_THUMB = "thumbnail_url";
@@ -65,16 +70,32 @@ public class PicasaSource extends CursorPhotoSource {
     private static final String PICASA_UPLOAD_TYPE = "InstantUpload";
     private static final String PICASA_UPLOADAUTO_TYPE = "InstantUploadAuto";
 
+    private static final String[] IMAGE_PROJECTION = {PICASA_ID, PICASA_URL, PICASA_ALBUM_ID};
+    private static final int IMAGE_ID = 0;
+    private static final int IMAGE_URL = 1;
+    private static final int IMAGE_ALBUM = 2;
+
+    // Number of measured renditions to remember.
+    private static final int RENDITION_HISTORY = 512;
+
     private final int mMaxPostAblums;
     private final String mPostsAlbumName;
     private final String mUnknownAlbumName;
-    private final LinkedList<ImageData> mRecycleBin;
-    private final ConnectivityManager mConnectivityManager;
-    private final int mMaxRecycleSize;
+    private final ConnectivityMonitor mConnectivity;
+    private final PhotoCache mCache;
+    private final DataBudget mBudget;
+    private final ResolutionCache mResolutions;
+    private final HashSet<String> mPrefetching;
+    private final AtomicLong mPrefetchBytes;
+    private final LinkedHashMap<String, Integer> mRenditionSides;
+    private final LinkedHashMap<String, String> mRequested;
+    private final int[] mRenditionCounts;
+    private int mScreennailSide;
 
     private Set<String> mFoundAlbumIds;
     private int mLastPosition;
     private int mDisplayLongSide;
+    private volatile boolean mOffline;
 
     public PicasaSource(Context context, SharedPreferences settings) {
         super(context, settings);
@@ -83,10 +104,31 @@ public class PicasaSource extends CursorPhotoSource {
         mMaxPostAblums = mResources.getInteger(R.integer.max_post_albums);
         mPostsAlbumName = mResources.getString(R.string.posts_album_name, "Posts");
         mUnknownAlbumName = mResources.getString(R.string.unknown_album_name, "Unknown");
-        mMaxRecycleSize = mResources.getInteger(R.integer.recycle_image_pool_size);
-        mConnectivityManager =
-                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        mRecycleBin = new LinkedList<ImageData>();
+        mConnectivity = ConnectivityMonitor.getInstance(context);
+        mOffline = !mConnectivity.isOnline();
+        mCache = new PhotoCache(context, "picasa",
+                mResources.getInteger(R.integer.picasa_cache_size));
+        mBudget = new DataBudget(context, "picasa",
+                mResources.getInteger(R.integer.picasa_metered_budget));
+        mResolutions = new ResolutionCache(context, "PicasaResolutions",
+                new Uri.Builder().scheme("content").authority(PICASA_AUTHORITY).build(),
+                mResources.getInteger(R.integer.picasa_resolution_ttl));
+        mPrefetching = new HashSet<String>();
+        mPrefetchBytes = new AtomicLong();
+        mRenditionSides = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > RENDITION_HISTORY;
+            }
+        };
+        mRequested = new LinkedHashMap<String, String>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                // streams that were never decoded never report back.
+                return size() > RENDITION_HISTORY;
+            }
+        };
+        mRenditionCounts = new int[2];
 
         fillQueue();
         mDisplayLongSide = getDisplayLongSide();
@@ -104,7 +146,6 @@ public class PicasaSource extends CursorPhotoSource {
     protected void openCursor(ImageData data) {
         log(TAG, "opening single album");
 
-        String[] projection = {PICASA_ID, PICASA_URL, PICASA_ROTATION, PICASA_ALBUM_ID};
         String selection = PICASA_ALBUM_ID + " = '" + data.albumId + "'";
 
         Uri.Builder picasaUriBuilder = new Uri.Builder()
@@ -112,7 +153,7 @@ public class PicasaSource extends CursorPhotoSource {
                 .authority(PICASA_AUTHORITY)
                 .appendPath(PICASA_PHOTO_PATH);
         data.cursor = mResolver.query(picasaUriBuilder.build(),
-                projection, selection, null, null);
+                IMAGE_PROJECTION, selection, null, null);
     }
 
     @Override
@@ -122,10 +163,10 @@ public class PicasaSource extends CursorPhotoSource {
                 openCursor(data);
             }
             if (data.cursor != null) {
-                int idIndex = data.cursor.getColumnIndex(PICASA_ID);
+                RowReader row = getRowReader(data);
                 data.cursor.moveToPosition(-1);
                 while (data.position == -1 && data.cursor.moveToNext()) {
-                    String id = data.cursor.getString(idIndex);
+                    String id = row.getString(IMAGE_ID);
                     if (id != null && id.equals(data.id)) {
                         data.position = data.cursor.getPosition();
                     }
@@ -139,20 +180,21 @@ public class PicasaSource extends CursorPhotoSource {
     }
 
     @Override
-    protected ImageData unpackImageData(Cursor cursor, ImageData data) {
+    protected RowReader newRowReader() {
+        return new RowReader(IMAGE_PROJECTION);
+    }
+
+    @Override
+    protected ImageData unpackImageData(RowReader row, ImageData data) {
         if (data == null) {
             data = new ImageData();
         }
-        int idIndex = cursor.getColumnIndex(PICASA_ID);
-        int urlIndex = cursor.getColumnIndex(PICASA_URL);
-        int bucketIndex = cursor.getColumnIndex(PICASA_ALBUM_ID);
-
-        data.id = cursor.getString(idIndex);
-        if (bucketIndex >= 0) {
-            data.albumId = cursor.getString(bucketIndex);
+        data.id = row.getString(IMAGE_ID);
+        if (row.has(IMAGE_ALBUM)) {
+            data.albumId = row.getString(IMAGE_ALBUM);
         }
-        if (urlIndex >= 0) {
-            data.url = cursor.getString(urlIndex);
+        if (row.has(IMAGE_URL)) {
+            data.url = row.getString(IMAGE_URL);
         }
         data.position = UNINITIALIZED;
         data.cursor = null;
@@ -163,29 +205,21 @@ public class PicasaSource extends CursorPhotoSource {
     protected Collection<ImageData> findImages(int howMany) {
         log(TAG, "finding images");
         LinkedList<ImageData> foundImages = new LinkedList<ImageData>();
-        if (mConnectivityManager.isActiveNetworkMetered()) {
-            howMany = Math.min(howMany, mMaxRecycleSize);
-            log(TAG, "METERED: " + howMany);
-            if (!mRecycleBin.isEmpty()) {
-                foundImages.addAll(mRecycleBin);
-                log(TAG, "recycled " + foundImages.size() + " items.");
-                return foundImages;
-            }
+        if (mOffline) {
+            findCachedImages(foundImages, howMany);
+            log(TAG, "OFFLINE: recycled " + foundImages.size() + " cached items.");
+            return foundImages;
         }
-
-        String[] projection = {PICASA_ID, PICASA_URL, PICASA_ROTATION, PICASA_ALBUM_ID};
-        LinkedList<String> albumIds = new LinkedList<String>();
-        for (String id : getFoundAlbums()) {
-            if (mSettings.isAlbumEnabled(id)) {
-                String[] parts = id.split(":");
-                if (parts.length > 2) {
-                    albumIds.addAll(resolveAlbumIds(id));
-                } else {
-                    albumIds.add(parts[1]);
-                }
+        if (mConnectivity.isMetered()) {
+            findCachedImages(foundImages, howMany);
+            log(TAG, "METERED: recycled " + foundImages.size() + " cached items.");
+            if (foundImages.size() >= howMany || !mBudget.canSpend()) {
+                return foundImages;
             }
+            howMany -= foundImages.size();
         }
 
+        LinkedList<String> albumIds = getEnabledAlbumIds();
         if (albumIds.size() > mMaxPostAblums) {
             Collections.shuffle(albumIds);
         }
@@ -206,6 +240,7 @@ public class PicasaSource extends CursorPhotoSource {
         }
 
         if (selection.length() == 0) {
+            mCatalogSize = 0;
             return foundImages;
         }
 
@@ -216,8 +251,9 @@ public class PicasaSource extends CursorPhotoSource {
                 .authority(PICASA_AUTHORITY)
                 .appendPath(PICASA_PHOTO_PATH);
         Cursor cursor = mResolver.query(picasaUriBuilder.build(),
-                projection, selection.toString(), null, null);
+                IMAGE_PROJECTION, selection.toString(), null, null);
         if (cursor != null) {
+            mCatalogSize = cursor.getCount();
             if (cursor.getCount() > howMany && mLastPosition == INVALID) {
                 mLastPosition = pickRandomStart(cursor.getCount(), howMany);
             }
@@ -225,16 +261,14 @@ public class PicasaSource extends CursorPhotoSource {
             log(TAG, "moving to position: " + mLastPosition);
             cursor.moveToPosition(mLastPosition);
 
-            int idIndex = cursor.getColumnIndex(PICASA_ID);
+            RowReader row = newRowReader().bind(cursor);
 
-            if (idIndex < 0) {
+            if (!row.has(IMAGE_ID)) {
                 log(TAG, "can't find the ID column!");
             } else {
-                while (cursor.moveToNext()) {
-                    if (idIndex >= 0) {
-                        ImageData data = unpackImageData(cursor, null);
-                        foundImages.offer(data);
-                    }
+                while (foundImages.size() < howMany && cursor.moveToNext()) {
+                    ImageData data = unpackImageData(row, null);
+                    foundImages.offer(data);
                     mLastPosition = cursor.getPosition();
                 }
                 if (cursor.isAfterLast()) {
@@ -248,12 +282,77 @@ public class PicasaSource extends CursorPhotoSource {
             cursor.close();
         } else {
             Log.w(TAG, "received a null cursor in findImages()");
+            reportError();
         }
         log(TAG, "found " + foundImages.size() + " items.");
         return foundImages;
     }
 
+    /** The provider ids of the albums the user has turned on. */
+    private LinkedList<String> getEnabledAlbumIds() {
+        LinkedList<String> albumIds = new LinkedList<String>();
+        for (String id : getFoundAlbums()) {
+            if (mSettings.isAlbumEnabled(id)) {
+                String[] parts = id.split(":");
+                if (parts.length > 2) {
+                    albumIds.addAll(resolveAlbumIds(id));
+                } else {
+                    albumIds.add(parts[1]);
+                }
+            }
+        }
+        return albumIds;
+    }
+
+    /** Note where a cached photo came from, so it can be shown and paged without the network. */
+    private void indexCachedImage(ImageData data, String key) {
+        if (data.albumId != null) {
+            mCache.setInfo(key, data.albumId + "\n" + (data.url == null ? "" : data.url));
+        }
+    }
+
+    /** Add up to howMany photos from enabled albums that are already on disk. */
+    private void findCachedImages(Collection<ImageData> foundImages, int howMany) {
+        HashSet<String> albumIds = new HashSet<String>(getEnabledAlbumIds());
+        LinkedHashMap<String, String> infos = new LinkedHashMap<String, String>();
+        for (String type : new String[] {PICASA_TYPE_SCREEN_VALUE, PICASA_TYPE_FULL_VALUE}) {
+            String suffix = "." + type;
+            for (String key : mCache.keys(suffix)) {
+                String id = key.substring(0, key.length() - suffix.length());
+                String info = mCache.getInfo(key);
+                if (info != null && !infos.containsKey(id)) {
+                    infos.put(id, info);
+                }
+            }
+        }
+        LinkedList<String> ids = new LinkedList<String>(infos.keySet());
+        Collections.shuffle(ids, mRNG);
+        for (String id : ids) {
+            if (foundImages.size() >= howMany) {
+                break;
+            }
+            String[] parts = infos.get(id).split("\n", 2);
+            if (!albumIds.contains(parts[0])) {
+                continue;
+            }
+            ImageData data = new ImageData();
+            data.id = id;
+            data.albumId = parts[0];
+            if (parts.length > 1 && !parts[1].isEmpty()) {
+                data.url = parts[1];
+            }
+            data.position = UNINITIALIZED;
+            foundImages.add(data);
+        }
+    }
+
     private String resolveAccount(String id) {
+        String key = "user:" + id;
+        String cached = mResolutions.getString(key);
+        if (cached != null) {
+            return cached;
+        }
+
         String displayName = "unknown";
         String[] projection = {PICASA_ACCOUNT};
         Uri.Builder picasaUriBuilder = new Uri.Builder()
@@ -270,8 +369,12 @@ public class PicasaSource extends CursorPhotoSource {
                 displayName = cursor.getString(accountIndex);
             }
             cursor.close();
+            if (displayName != null) {
+                mResolutions.putString(key, displayName);
+            }
         } else {
             Log.w(TAG, "received a null cursor in resolveAccount()");
+            reportError();
         }
         return displayName;
     }
@@ -285,6 +388,13 @@ public class PicasaSource extends CursorPhotoSource {
             return albumIds;
         }
 
+        String key = "albums:" + parts[1] + ":" + parts[2];
+        Collection<String> cached = mResolutions.get(key);
+        if (cached != null) {
+            log(TAG, " " + id + " resolved to " + cached.size() + " cached albums");
+            return cached;
+        }
+
         String[] projection = {PICASA_ID, PICASA_ALBUM_TYPE, PICASA_ALBUM_UPDATED,
                                PICASA_ALBUM_USER};
         String order = PICASA_ALBUM_UPDATED + " DESC";
@@ -309,10 +419,12 @@ public class PicasaSource extends CursorPhotoSource {
                 while (cursor.moveToNext()) {
                     albumIds.add(cursor.getString(idIndex));
                 }
+                mResolutions.put(key, albumIds);
             }
             cursor.close();
         } else {
             Log.w(TAG, "received a null cursor in resolveAlbumIds()");
+            reportError();
         }
         return albumIds;
     }
@@ -419,6 +531,7 @@ public class PicasaSource extends CursorPhotoSource {
 
         } else {
             Log.w(TAG, "received a null cursor in findAlbums()");
+            reportError();
         }
         log(TAG, "found " + foundAlbums.size() + " items.");
         mFoundAlbumIds = foundAlbums.keySet();
@@ -429,37 +542,244 @@ public class PicasaSource extends CursorPhotoSource {
         return  TAG + ":" + serverId;
     }
 
+    private Uri getPhotoUri(ImageData data, String type) {
+        Uri.Builder photoUriBuilder = new Uri.Builder()
+                .scheme("content")
+                .authority(PICASA_AUTHORITY)
+                .appendPath(PICASA_PHOTO_PATH)
+                .appendPath(data.id)
+                .appendQueryParameter(PICASA_TYPE_KEY, type);
+        if (data.url != null) {
+            photoUriBuilder.appendQueryParameter(PICASA_URL_KEY, data.url);
+        }
+        return photoUriBuilder.build();
+    }
+
+    private static String getCacheKey(ImageData data, String type) {
+        return data.id + "." + type;
+    }
+
+    /** While on an unmetered network, download screennails of upcoming photos to disk. */
+    @Override
+    protected void prefetch(final ImageData data) {
+        if (data.id == null || mOffline || mConnectivity.isMetered()) {
+            return;
+        }
+        final String key = getCacheKey(data, PICASA_TYPE_SCREEN_VALUE);
+        synchronized (mPrefetching) {
+            if (mPrefetching.contains(key) || mCache.contains(key)) {
+                return;
+            }
+            mPrefetching.add(key);
+        }
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream is = null;
+                try {
+                    is = mResolver.openInputStream(getPhotoUri(data, PICASA_TYPE_SCREEN_VALUE));
+                    if (is != null) {
+                        long bytes = mCache.put(key, is);
+                        if (bytes > 0L) {
+                            indexCachedImage(data, key);
+                            mPrefetchBytes.addAndGet(bytes);
+                            log(TAG, "prefetched " + key + ": " + bytes + " bytes");
+                        }
+                    }
+                } catch (FileNotFoundException fnf) {
+                    log(TAG, "prefetch failed for " + key + ": " + fnf);
+                } finally {
+                    try {
+                        if (is != null) {
+                            is.close();
+                        }
+                    } catch (IOException ioe) {
+                        log(TAG, "close fail: " + ioe);
+                    }
+                    synchronized (mPrefetching) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Without a network only cached photos can be shown, so stop asking the provider. */
+    @Override
+    protected void onConnectivityChanged(ConnectivityMonitor connectivity) {
+        boolean offline = !connectivity.isOnline();
+        if (offline != mOffline) {
+            log(TAG, (offline ? "going" : "leaving") + " cache-only mode");
+            mOffline = offline;
+        }
+    }
+
+    /** Learn the real size of the rendition that was just opened for this photo. */
+    @Override
+    protected void onDecodeBounds(ImageData data, int width, int height) {
+        synchronized (mRenditionSides) {
+            String type = mRequested.remove(data.id);
+            if (type != null) {
+                int side = Math.max(width, height);
+                mRenditionSides.put(getCacheKey(data, type), side);
+                if (PICASA_TYPE_SCREEN_VALUE.equals(type)) {
+                    // the server caps screennails, so the largest one seen is the cap.
+                    mScreennailSide = Math.max(mScreennailSide, side);
+                }
+                log(TAG, data.id + " " + type + " is " + width + "x" + height);
+            }
+        }
+    }
+
+    /**
+     * The smallest rendition that still covers longSide. Screennails are capped at a size
+     * learned from the ones already decoded; until one has been seen, fall back to
+     * comparing against the display. Metered networks always get the screennail.
+     */
+    private String chooseRendition(ImageData data, int longSide, boolean metered) {
+        if (metered) {
+            return PICASA_TYPE_SCREEN_VALUE;
+        }
+        synchronized (mRenditionSides) {
+            Integer screen = mRenditionSides.get(getCacheKey(data, PICASA_TYPE_SCREEN_VALUE));
+            Integer full = mRenditionSides.get(getCacheKey(data, PICASA_TYPE_FULL_VALUE));
+            if (screen == null && mScreennailSide > 0) {
+                screen = mScreennailSide;
+            }
+            if (screen != null) {
+                if (screen >= longSide || (full != null && full <= screen)) {
+                    return PICASA_TYPE_SCREEN_VALUE;
+                }
+                return PICASA_TYPE_FULL_VALUE;
+            }
+        }
+        return ((2 * longSide) <= mDisplayLongSide ?
+                PICASA_TYPE_SCREEN_VALUE : PICASA_TYPE_FULL_VALUE);
+    }
+
+    @Override
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "prefetched=" + mPrefetchBytes.get() + " bytes");
+        synchronized (mRenditionSides) {
+            pw.println(prefix + "renditions: screennail=" + mRenditionCounts[0] +
+                    " full=" + mRenditionCounts[1] + " screennail cap=" + mScreennailSide);
+        }
+        mCache.dump(pw, prefix);
+        mBudget.dump(pw, prefix);
+        mResolutions.dump(pw, prefix);
+    }
+
+    /**
+     * Opens the rendition that fits the display, from disk if possible. Downloads are
+     * written through to the cache, and on a metered network they are charged to the
+     * daily budget; once that is spent, only cached photos can be shown.
+     */
     @Override
     protected InputStream getStream(ImageData data, int longSide) {
-        InputStream is = null;
-        try {
-            Uri.Builder photoUriBuilder = new Uri.Builder()
-                    .scheme("content")
-                    .authority(PICASA_AUTHORITY)
-                    .appendPath(PICASA_PHOTO_PATH)
-                    .appendPath(data.id);
-            if (mConnectivityManager.isActiveNetworkMetered() ||
-                    ((2 * longSide) <= mDisplayLongSide)) {
-                photoUriBuilder.appendQueryParameter(PICASA_TYPE_KEY, PICASA_TYPE_SCREEN_VALUE);
-            } else {
-                photoUriBuilder.appendQueryParameter(PICASA_TYPE_KEY, PICASA_TYPE_FULL_VALUE);
+        boolean metered = mConnectivity.isMetered();
+        String type = chooseRendition(data, longSide, metered);
+
+        String key = getCacheKey(data, type);
+        InputStream is = mCache.open(key);
+        if (is == null && PICASA_TYPE_SCREEN_VALUE.equals(type)) {
+            // a bigger rendition on disk beats spending bytes on a smaller one; look before
+            // opening, so one photo only counts as one miss.
+            String fullKey = getCacheKey(data, PICASA_TYPE_FULL_VALUE);
+            if (mCache.contains(fullKey)) {
+                is = mCache.open(fullKey);
+                if (is != null) {
+                    type = PICASA_TYPE_FULL_VALUE;
+                    key = fullKey;
+                }
+            }
+        }
+        if (is != null) {
+            log(TAG, "serving " + data.id + " from the cache");
+            noteRequest(data, type);
+            if (mCache.getInfo(key) == null) {
+                // cached before photos were indexed.
+                indexCachedImage(data, key);
             }
-            if (data.url != null) {
-                photoUriBuilder.appendQueryParameter(PICASA_URL_KEY, data.url);
+            if (metered) {
+                mBudget.save(mCache.length(key));
             }
-            is = mResolver.openInputStream(photoUriBuilder.build());
+            return is;
+        }
+
+        if (mOffline) {
+            log(TAG, "offline, skipping uncached " + data.id);
+            return null;
+        }
+        if (metered && !mBudget.canSpend()) {
+            log(TAG, "metered budget is spent, skipping " + data.id);
+            return null;
+        }
+
+        try {
+            is = mResolver.openInputStream(getPhotoUri(data, type));
         } catch (FileNotFoundException fnf) {
             log(TAG, "file not found: " + fnf);
             is = null;
         }
 
         if (is != null) {
-            mRecycleBin.offer(data);
-            log(TAG, "RECYCLED");
-            while (mRecycleBin.size() > mMaxRecycleSize) {
-                mRecycleBin.poll();
+            // meter the network side, so that what the cache drains on close is charged too.
+            if (metered) {
+                is = new MeteredInputStream(is);
             }
+            indexCachedImage(data, key);
+            is = mCache.writeThrough(key, is);
+            noteRequest(data, type);
         }
         return is;
     }
+
+    /** Remember which rendition is about to be decoded, so onDecodeBounds() can measure it. */
+    private void noteRequest(ImageData data, String type) {
+        synchronized (mRenditionSides) {
+            mRequested.put(data.id, type);
+            mRenditionCounts[PICASA_TYPE_SCREEN_VALUE.equals(type) ? 0 : 1]++;
+        }
+    }
+
+    /** Charges every byte read from the network to the metered budget when it is closed. */
+    private class MeteredInputStream extends FilterInputStream {
+        private long mCount;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long n = super.skip(count);
+            mCount += Math.max(n, 0L);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            mBudget.spend(mCount);
+            mCount = 0L;
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Remembers the answers to slow provider lookups across restarts.
+ *
+ * Entries expire after a time to live, and the whole cache is dropped whenever the
+ * provider reports a change under the watched authority.
+ */
+public class ResolutionCache {
+    private static final String TAG = "PhotoTable.ResolutionCache";
+    private static final String SEPARATOR = "\n";
+
+    // One observer per preferences file, for the life of the process.
+    private static final HashSet<String> sWatched = new HashSet<String>();
+
+    private final SharedPreferences mPrefs;
+    private final long mTimeToLive;
+    private int mHits;
+    private int mMisses;
+
+    public ResolutionCache(Context context, String name, Uri watched, long timeToLive) {
+        mPrefs = context.getSharedPreferences(name, 0);
+        mTimeToLive = timeToLive;
+        watch(context.getApplicationContext(), name, watched);
+    }
+
+    private static void watch(Context context, final String name, Uri uri) {
+        synchronized (sWatched) {
+            if (!sWatched.add(name)) {
+                return;
+            }
+        }
+        final SharedPreferences prefs = context.getSharedPreferences(name, 0);
+        context.getContentResolver().registerContentObserver(uri, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        PhotoSource.log(TAG, name + " changed, invalidating");
+                        prefs.edit().clear().apply();
+                    }
+                });
+    }
+
+    /** The cached values for key, or null if there are none or they have expired. */
+    public synchronized List<String> get(String key) {
+        String entry = mPrefs.getString(key, null);
+        if (entry != null) {
+            int split = entry.indexOf(SEPARATOR);
+            try {
+                long stored = Long.parseLong(entry.substring(0, split));
+                long age = System.currentTimeMillis() - stored;
+                if (age >= 0L && age < mTimeToLive) {
+                    mHits++;
+                    String values = entry.substring(split + SEPARATOR.length());
+                    if (values.length() == 0) {
+                        return Collections.<String>emptyList();
+                    }
+                    return Arrays.asList(values.split(SEPARATOR));
+                }
+            } catch (NumberFormatException nfe) {
+                // corrupt, treat as missing.
+            } catch (IndexOutOfBoundsException ioobe) {
+                // corrupt, treat as missing.
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /** The single cached value for key, or null. */
+    public String getString(String key) {
+        List<String> values = get(key);
+        return (values == null || values.isEmpty() ? null : values.get(0));
+    }
+
+    public synchronized void put(String key, Collection<String> values) {
+        StringBuilder entry = new StringBuilder();
+        entry.append(System.currentTimeMillis());
+        for (String value : values) {
+            entry.append(SEPARATOR).append(value);
+        }
+        if (values.isEmpty()) {
+            entry.append(SEPARATOR);
+        }
+        mPrefs.edit().putString(key, entry.toString()).apply();
+    }
+
+    public void putString(String key, String value) {
+        LinkedList<String> values = new LinkedList<String>();
+        values.add(value);
+        put(key, values);
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "resolutions: entries=" + mPrefs.getAll().size() +
+                " hits=" + mHits + " misses=" + mMisses);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Tracks the latency and errors of one photo source, and decides how much of the image
+ * queue it should be trusted with.
+ *
+ * A source that is slow or error prone gets a reduced share. After enough consecutive
+ * failures the breaker opens and the source gets no share at all, except for a single
+ * probe call every probe period. A successful probe closes the breaker again.
+ */
+public class SourceHealth {
+    private static final String TAG = "PhotoTable.SourceHealth";
+
+    /** Finding albums and images. */
+    public static final int FIND = 0;
+    /** Opening a photo for decoding. */
+    public static final int STREAM = 1;
+    private static final String[] OPERATION_NAMES = { "find", "stream" };
+
+    // Number of recent calls of each operation to keep for percentiles and error rates.
+    private static final int WINDOW = 64;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final String[] STATE_NAMES = { "closed", "open", "half-open" };
+
+    /** Rolling record of the most recent calls of one operation. */
+    private static class Window {
+        final long[] latencies = new long[WINDOW];
+        final boolean[] errors = new boolean[WINDOW];
+        int next;
+        int size;
+        long calls;
+        long failures;
+        long timeouts;
+
+        void add(long latency, boolean error) {
+            latencies[next] = latency;
+            errors[next] = error;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+            calls++;
+        }
+
+        long percentile(float p) {
+            if (size == 0) {
+                return 0L;
+            }
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) (p * size))];
+        }
+
+        float errorRate() {
+            if (size == 0) {
+                return 0f;
+            }
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (errors[i]) {
+                    count++;
+                }
+            }
+            return (float) count / size;
+        }
+    }
+
+    private final String mName;
+    private final Window[] mWindows;
+    private final long mSlowLatency;
+    private final float mMaxErrorRate;
+    private final float mDegradedShare;
+    private final int mBreakerThreshold;
+    private final long mProbePeriod;
+    private int mState;
+    private int mConsecutiveFailures;
+    private long mOpenedAt;
+    private long mLastProbe;
+
+    public SourceHealth(String name, Resources resources) {
+        mName = name;
+        mWindows = new Window[] { new Window(), new Window() };
+        mSlowLatency = resources.getInteger(R.integer.source_slow_latency);
+        mMaxErrorRate = resources.getInteger(R.integer.source_max_error_rate) / 1000000f;
+        mDegradedShare = resources.getInteger(R.integer.source_degraded_share) / 1000000f;
+        mBreakerThreshold = resources.getInteger(R.integer.source_breaker_threshold);
+        mProbePeriod = resources.getInteger(R.integer.source_probe_period);
+        mState = CLOSED;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized void recordSuccess(int operation, long latency) {
+        mWindows[operation].add(latency, false);
+        mConsecutiveFailures = 0;
+        // only the probe, or a call made after it, shows the source is back: calls that
+        // were already in flight when the breaker opened don't count.
+        long started = SystemClock.elapsedRealtime() - latency;
+        if (mState == HALF_OPEN && started >= mLastProbe) {
+            Log.i(TAG, mName + " recovered, closing the breaker");
+            mState = CLOSED;
+        }
+    }
+
+    public synchronized void recordFailure(int operation, long latency) {
+        mWindows[operation].add(latency, true);
+        mWindows[operation].failures++;
+        onFailure();
+    }
+
+    public synchronized void recordTimeout(int operation, long latency) {
+        mWindows[operation].add(latency, true);
+        mWindows[operation].timeouts++;
+        onFailure();
+    }
+
+    private void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == HALF_OPEN ||
+                (mState == CLOSED && mConsecutiveFailures >= mBreakerThreshold)) {
+            Log.w(TAG, mName + " failed " + mConsecutiveFailures + " times, opening the breaker");
+            mState = OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * The fraction of its normal share that the source should get right now.
+     * When the breaker is open this is zero, unless a probe is due, in which case the
+     * caller is expected to make exactly one call.
+     */
+    public synchronized float getShare() {
+        if (mState == OPEN || mState == HALF_OPEN) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - Math.max(mOpenedAt, mLastProbe) >= mProbePeriod) {
+                log("probing " + mName);
+                mLastProbe = now;
+                mState = HALF_OPEN;
+                return -1f;
+            }
+            return 0f;
+        }
+        if (isDegraded()) {
+            return mDegradedShare;
+        }
+        return 1f;
+    }
+
+    /** True if getShare() asked for a single probe call. */
+    public static boolean isProbe(float share) {
+        return share < 0f;
+    }
+
+    private boolean isDegraded() {
+        for (Window window : mWindows) {
+            if (window.percentile(0.9f) > mSlowLatency || window.errorRate() > mMaxErrorRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getLatencyPercentile(int operation, float p) {
+        return mWindows[operation].percentile(p);
+    }
+
+    public synchronized float getErrorRate(int operation) {
+        return mWindows[operation].errorRate();
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + mName + ": breaker=" + STATE_NAMES[mState] +
+                (isDegraded() ? " degraded" : "") +
+                " consecutive failures=" + mConsecutiveFailures);
+        for (int op = 0; op < mWindows.length; op++) {
+            Window window = mWindows[op];
+            pw.println(prefix + "  " + OPERATION_NAMES[op] + ": calls=" + window.calls +
+                    " failures=" + window.failures + " timeouts=" + window.timeouts +
+                    " recent error rate=" + window.errorRate());
+            pw.println(prefix + "    latency p50=" + window.percentile(0.5f) + "ms" +
+                    " p90=" + window.percentile(0.9f) + "ms" +
+                    " p99=" + window.percentile(0.99f) + "ms");
+        }
+    }
+
+    private static void log(String message) {
+        PhotoSource.log(TAG, message);
+    }
+}
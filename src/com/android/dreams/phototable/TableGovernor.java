@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Sizes the table and paces the drops to what the device can keep up with.
+ *
+ * After each drop the governor looks at the frames dropped since last time, the bitmap
+ * memory on the table and how long decodes are taking. A struggling table holds fewer
+ * photos and drops them more slowly; a comfortable one grows, one photo at a time, up to
+ * the configured limits.
+ */
+public class TableGovernor {
+    private static final String TAG = "TableGovernor";
+
+    /** Don't judge the frame rate on fewer frames than this. */
+    private static final int MIN_FRAMES = 60;
+
+    private final boolean mEnabled;
+    private final int mMinCapacity;
+    private final int mMaxCapacity;
+    private final float mRedealRatio;
+    private final int mMinDropPeriod;
+    private final int mMaxDropPeriod;
+    private final int mBaseFastDropPeriod;
+    private final float mJankHigh;
+    private final float mJankLow;
+    private final long mMemoryBudget;
+    private int mCapacity;
+    private int mRedealCount;
+    private int mDropPeriod;
+    private int mFastDropPeriod;
+    private long mDecodeMillis;
+    private long mBitmapBytes;
+    private float mJank;
+    private int mLastFrames;
+    private int mLastDropped;
+    private int mGrown;
+    private int mShrunk;
+
+    public TableGovernor(Resources resources) {
+        mEnabled = resources.getBoolean(R.bool.enable_adaptive_table);
+        mCapacity = resources.getInteger(R.integer.table_capacity);
+        mRedealCount = resources.getInteger(R.integer.redeal_count);
+        mDropPeriod = resources.getInteger(R.integer.table_drop_period);
+        mFastDropPeriod = resources.getInteger(R.integer.fast_drop);
+        mBaseFastDropPeriod = mFastDropPeriod;
+        mRedealRatio = mRedealCount / (float) Math.max(1, mCapacity);
+        mMinCapacity = Math.min(mCapacity, resources.getInteger(R.integer.min_table_capacity));
+        mMaxCapacity = Math.max(mCapacity, resources.getInteger(R.integer.max_table_capacity));
+        mMinDropPeriod = Math.min(mDropPeriod,
+                resources.getInteger(R.integer.min_table_drop_period));
+        mMaxDropPeriod = Math.max(mDropPeriod,
+                resources.getInteger(R.integer.max_table_drop_period));
+        mJankHigh = resources.getInteger(R.integer.adaptive_jank_high) / 1000000f;
+        mJankLow = resources.getInteger(R.integer.adaptive_jank_low) / 1000000f;
+        mMemoryBudget = (long) (Runtime.getRuntime().maxMemory() *
+                (resources.getInteger(R.integer.adaptive_memory_budget) / 1000000f));
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getRedealCount() {
+        return mRedealCount;
+    }
+
+    public int getDropPeriod() {
+        return mDropPeriod;
+    }
+
+    public int getFastDropPeriod() {
+        return mFastDropPeriod;
+    }
+
+    /** The largest the table may ever grow, for sizing pools. */
+    public int getMaxCapacity() {
+        return (mEnabled ? mMaxCapacity : mCapacity);
+    }
+
+    /** A photo took this long to find and decode. */
+    public void onDecoded(long millis) {
+        // exponentially weighted, so one slow network fetch doesn't swing it.
+        mDecodeMillis = (mDecodeMillis == 0 ? millis : (3 * mDecodeMillis + millis) / 4);
+    }
+
+    /**
+     * Reconsider the table after a drop.
+     *
+     * @param frames animation frames drawn so far.
+     * @param dropped animation frames missed so far.
+     * @param bitmapBytes memory held by the bitmaps on the table now.
+     */
+    public void update(int frames, int dropped, long bitmapBytes) {
+        mBitmapBytes = bitmapBytes;
+        if (!mEnabled) {
+            return;
+        }
+        int newFrames = frames - mLastFrames;
+        int newDropped = dropped - mLastDropped;
+        boolean judged = newFrames >= MIN_FRAMES;
+        if (judged) {
+            mJank = newDropped / (float) (newFrames + newDropped);
+            mLastFrames = frames;
+            mLastDropped = dropped;
+        }
+
+        final int oldCapacity = mCapacity;
+        final int oldDropPeriod = mDropPeriod;
+        final boolean overBudget = bitmapBytes > mMemoryBudget;
+        if (overBudget || (judged && mJank > mJankHigh)) {
+            mCapacity = Math.max(mMinCapacity, mCapacity - 1);
+            mDropPeriod = Math.min(mMaxDropPeriod, mDropPeriod + mDropPeriod / 4);
+        } else if (judged && mJank < mJankLow && bitmapBytes < mMemoryBudget * 3 / 4) {
+            // room for one more photo, judging by the ones already there.
+            mCapacity = Math.min(mMaxCapacity, mCapacity + 1);
+            mDropPeriod = Math.max(mMinDropPeriod, mDropPeriod - mDropPeriod / 8);
+        }
+        mRedealCount = Math.max(1, Math.round(mRedealRatio * mCapacity));
+        // no point dropping faster than photos can be decoded.
+        mFastDropPeriod = (int) Math.min(mDropPeriod,
+                Math.max(mBaseFastDropPeriod, 2 * mDecodeMillis));
+
+        if (mCapacity != oldCapacity || mDropPeriod != oldDropPeriod) {
+            if (mCapacity > oldCapacity) {
+                mGrown++;
+            } else if (mCapacity < oldCapacity) {
+                mShrunk++;
+            }
+            Log.i(TAG, "capacity " + oldCapacity + " -> " + mCapacity +
+                    ", drop period " + oldDropPeriod + " -> " + mDropPeriod +
+                    "ms: jank=" + Math.round(100f * mJank) + "%" +
+                    " bitmaps=" + (bitmapBytes >> 10) + "/" + (mMemoryBudget >> 10) + "KB" +
+                    " decode=" + mDecodeMillis + "ms");
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "TableGovernor: " + (mEnabled ? "adaptive" : "fixed"));
+        pw.println(prefix + "  capacity=" + mCapacity +
+                " [" + mMinCapacity + ", " + mMaxCapacity + "]" +
+                " redeal=" + mRedealCount +
+                " grown=" + mGrown + " shrunk=" + mShrunk);
+        pw.println(prefix + "  drop period=" + mDropPeriod +
+                " [" + mMinDropPeriod + ", " + mMaxDropPeriod + "]" +
+                " fast=" + mFastDropPeriod);
+        pw.println(prefix + "  jank=" + Math.round(100f * mJank) + "%" +
+                " bitmaps=" + (mBitmapBytes >> 10) + "KB of " + (mMemoryBudget >> 10) + "KB" +
+                " decode=" + mDecodeMillis + "ms");
+    }
+}
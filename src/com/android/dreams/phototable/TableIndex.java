@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the table that finds the photo nearest to a point within a cone.
+ *
+ * Photos are the integer slots of a {@link TableScene}, with their centres in primitive
+ * arrays, chained through the cell that holds their centre. A search visits rings of cells
+ * outward from the start and stops as soon as no unvisited cell can hold anything closer,
+ * so it touches a handful of cells however many photos are on the table, and allocates
+ * nothing.
+ */
+public class TableIndex {
+    private static final int NONE = -1;
+
+    private float[] mX;
+    private float[] mY;
+    private int[] mCell;
+    private int[] mNextInCell;
+    private int[] mHeads;
+    private float mCellSize;
+    private int mColumns;
+    private int mRows;
+
+    public TableIndex(int capacity) {
+        mX = new float[0];
+        mY = new float[0];
+        mCell = new int[0];
+        mNextInCell = new int[0];
+        ensureCapacity(capacity);
+        mHeads = new int[] { NONE };
+        mColumns = 1;
+        mRows = 1;
+        mCellSize = 1f;
+    }
+
+    public void ensureCapacity(int capacity) {
+        int old = mCell.length;
+        if (capacity > old) {
+            mX = Arrays.copyOf(mX, capacity);
+            mY = Arrays.copyOf(mY, capacity);
+            mCell = Arrays.copyOf(mCell, capacity);
+            mNextInCell = Arrays.copyOf(mNextInCell, capacity);
+            Arrays.fill(mCell, old, capacity, NONE);
+        }
+    }
+
+    public int getCellCount() {
+        return mHeads.length;
+    }
+
+    /** Lay the grid over a table of the given size, with cells about one photo across. */
+    public void resize(int width, int height, float cellSize) {
+        mCellSize = Math.max(1f, cellSize);
+        mColumns = Math.max(1, (int) Math.ceil(width / mCellSize));
+        mRows = Math.max(1, (int) Math.ceil(height / mCellSize));
+        mHeads = new int[mColumns * mRows];
+        Arrays.fill(mHeads, NONE);
+        for (int slot = 0; slot < mCell.length; slot++) {
+            if (mCell[slot] != NONE) {
+                link(slot);
+            }
+        }
+    }
+
+    private int cellOf(float x, float y) {
+        int column = Math.min(mColumns - 1, Math.max(0, (int) (x / mCellSize)));
+        int row = Math.min(mRows - 1, Math.max(0, (int) (y / mCellSize)));
+        return row * mColumns + column;
+    }
+
+    private void link(int slot) {
+        int cell = cellOf(mX[slot], mY[slot]);
+        mCell[slot] = cell;
+        mNextInCell[slot] = mHeads[cell];
+        mHeads[cell] = slot;
+    }
+
+    private void unlink(int slot) {
+        int cell = mCell[slot];
+        if (mHeads[cell] == slot) {
+            mHeads[cell] = mNextInCell[slot];
+        } else {
+            for (int i = mHeads[cell]; i != NONE; i = mNextInCell[i]) {
+                if (mNextInCell[i] == slot) {
+                    mNextInCell[i] = mNextInCell[slot];
+                    break;
+                }
+            }
+        }
+        mCell[slot] = NONE;
+    }
+
+    /** Place or move a photo by its centre, in table coordinates. */
+    public void update(int slot, float x, float y) {
+        if (contains(slot)) {
+            unlink(slot);
+        }
+        mX[slot] = x;
+        mY[slot] = y;
+        link(slot);
+    }
+
+    public void remove(int slot) {
+        if (contains(slot)) {
+            unlink(slot);
+        }
+    }
+
+    public boolean contains(int slot) {
+        return slot >= 0 && slot < mCell.length && mCell[slot] != NONE;
+    }
+
+    /**
+     * The nearest photo, other than exclude, whose centre lies within a cone from (x, y)
+     * around direction, in degrees clockwise from up, or -1 if there is none.
+     */
+    public int findNearest(float x, float y, int exclude, float direction, float angle) {
+        final double alpha = Math.toRadians(direction);
+        final double beta = Math.toRadians(Math.min(angle, 180f) / 2f);
+        final double leftX = Math.sin(alpha - beta);
+        final double leftY = Math.cos(alpha - beta);
+        final double rightX = Math.sin(alpha + beta);
+        final double rightY = Math.cos(alpha + beta);
+        final int start = cellOf(x, y);
+        final int column = start % mColumns;
+        final int row = start / mColumns;
+        final int rings = Math.max(mColumns, mRows);
+
+        int best = NONE;
+        double bestDistance = Double.MAX_VALUE;
+        for (int ring = 0; ring < rings; ring++) {
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= mRows) {
+                    continue;
+                }
+                boolean edge = (r == row - ring || r == row + ring);
+                int step = (edge ? 1 : 2 * ring);
+                for (int c = column - ring; c <= column + ring; c += Math.max(1, step)) {
+                    if (c < 0 || c >= mColumns) {
+                        continue;
+                    }
+                    for (int slot = mHeads[r * mColumns + c]; slot != NONE;
+                            slot = mNextInCell[slot]) {
+                        if (slot == exclude) {
+                            continue;
+                        }
+                        // flip y so that up is positive, as the direction is.
+                        double dx = mX[slot] - x;
+                        double dy = y - mY[slot];
+                        if (dx * leftY - dy * leftX > 0.0 &&
+                                dx * rightY - dy * rightX < 0.0) {
+                            double distance = Math.hypot(dx, dy);
+                            if (distance < bestDistance) {
+                                bestDistance = distance;
+                                best = slot;
+                            }
+                        }
+                    }
+                }
+            }
+            // every cell in the next ring is at least this far away.
+            if (best != NONE && bestDistance <= ring * mCellSize) {
+                break;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.graphics.PointF;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Chooses where photos land so that as much of each one as possible stays in view.
+ *
+ * A coarse grid counts how many photos cover each cell. Every slot remembers the cells it
+ * covers, so moving or removing a photo only touches its own footprint. To place a photo,
+ * a fixed number of random candidates are scored by how much they would cover up, and
+ * the least crowded one wins: constant work per drop, whatever the table holds.
+ */
+public class TablePlacer {
+    private static final int NONE = -1;
+
+    private final int mResolution;
+    private final int mCandidates;
+    private final Random mRandom;
+    private int[] mCover;
+    private int mColumns;
+    private int mRows;
+    private float mCellSize;
+    private int mWidth;
+    private int mHeight;
+    private int mCovered;
+    private int[] mLeft;
+    private int[] mTop;
+    private int[] mRight;
+    private int[] mBottom;
+
+    /**
+     * @param resolution cells along the long side of the table.
+     * @param candidates landing spots to consider for each photo.
+     */
+    public TablePlacer(int resolution, int candidates, Random random) {
+        mResolution = Math.max(1, resolution);
+        mCandidates = Math.max(1, candidates);
+        mRandom = random;
+        mLeft = new int[0];
+        mTop = new int[0];
+        mRight = new int[0];
+        mBottom = new int[0];
+        resize(1, 1);
+    }
+
+    public void ensureCapacity(int capacity) {
+        int old = mLeft.length;
+        if (capacity > old) {
+            mLeft = Arrays.copyOf(mLeft, capacity);
+            mTop = Arrays.copyOf(mTop, capacity);
+            mRight = Arrays.copyOf(mRight, capacity);
+            mBottom = Arrays.copyOf(mBottom, capacity);
+            Arrays.fill(mLeft, old, capacity, NONE);
+        }
+    }
+
+    public void resize(int width, int height) {
+        mWidth = Math.max(1, width);
+        mHeight = Math.max(1, height);
+        mCellSize = Math.max(mWidth, mHeight) / (float) mResolution;
+        mColumns = Math.max(1, (int) Math.ceil(mWidth / mCellSize));
+        mRows = Math.max(1, (int) Math.ceil(mHeight / mCellSize));
+        mCover = new int[mColumns * mRows];
+        mCovered = 0;
+        for (int slot = 0; slot < mLeft.length; slot++) {
+            if (mLeft[slot] != NONE) {
+                // footprints are in cells, so they have to be placed again.
+                mLeft[slot] = NONE;
+            }
+        }
+    }
+
+    private int column(float x) {
+        return Math.min(mColumns - 1, Math.max(0, (int) (x / mCellSize)));
+    }
+
+    private int row(float y) {
+        return Math.min(mRows - 1, Math.max(0, (int) (y / mCellSize)));
+    }
+
+    private boolean onTable(float cx, float cy, float halfWidth, float halfHeight) {
+        return cx + halfWidth > 0f && cx - halfWidth < mWidth &&
+                cy + halfHeight > 0f && cy - halfHeight < mHeight;
+    }
+
+    /** Record that a photo covers the given box, replacing wherever it was before. */
+    public void place(int slot, float cx, float cy, float halfWidth, float halfHeight) {
+        remove(slot);
+        if (onTable(cx, cy, halfWidth, halfHeight)) {
+            mLeft[slot] = column(cx - halfWidth);
+            mRight[slot] = column(cx + halfWidth);
+            mTop[slot] = row(cy - halfHeight);
+            mBottom[slot] = row(cy + halfHeight);
+            cover(slot, 1);
+        }
+    }
+
+    public void remove(int slot) {
+        if (mLeft[slot] != NONE) {
+            cover(slot, -1);
+            mLeft[slot] = NONE;
+        }
+    }
+
+    private void cover(int slot, int delta) {
+        for (int r = mTop[slot]; r <= mBottom[slot]; r++) {
+            for (int c = mLeft[slot]; c <= mRight[slot]; c++) {
+                int i = r * mColumns + c;
+                if (delta > 0 && mCover[i] == 0) {
+                    mCovered++;
+                }
+                mCover[i] += delta;
+                if (delta < 0 && mCover[i] == 0) {
+                    mCovered--;
+                }
+            }
+        }
+    }
+
+    /** How many photos already lie under a box, summed over its cells. */
+    private int crowding(float cx, float cy, float halfWidth, float halfHeight) {
+        int top = row(cy - halfHeight);
+        int bottom = row(cy + halfHeight);
+        int left = column(cx - halfWidth);
+        int right = column(cx + halfWidth);
+        int score = 0;
+        for (int r = top; r <= bottom; r++) {
+            for (int c = left; c <= right; c++) {
+                score += mCover[r * mColumns + c];
+            }
+        }
+        return score;
+    }
+
+    /** Pick the centre for a new photo of the given size, keeping it on the table. */
+    public void choose(float halfWidth, float halfHeight, PointF out) {
+        float minX = Math.min(halfWidth, mWidth / 2f);
+        float minY = Math.min(halfHeight, mHeight / 2f);
+        float rangeX = mWidth - 2f * minX;
+        float rangeY = mHeight - 2f * minY;
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < mCandidates && best > 0; i++) {
+            float x = minX + mRandom.nextFloat() * rangeX;
+            float y = minY + mRandom.nextFloat() * rangeY;
+            int score = crowding(x, y, halfWidth, halfHeight);
+            if (score < best) {
+                best = score;
+                out.x = x;
+                out.y = y;
+            }
+        }
+    }
+
+    /** The fraction of the table with at least one photo on it. */
+    public float getCoverage() {
+        return mCovered / (float) mCover.length;
+    }
+}
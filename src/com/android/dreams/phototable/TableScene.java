@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import java.util.Arrays;
+
+/**
+ * The photos on the table, in the order they will be cleared away.
+ *
+ * Each photo is a small integer slot with its size, resting transform and place in the pile
+ * held in primitive arrays. The pile is a doubly linked list threaded through the slots, so
+ * bringing a photo to the top or taking it away is constant time. The scene knows nothing
+ * of views: the table maps slots to the views that show them, and never has to ask a view
+ * where it is. The scene keeps its {@link TableIndex} and {@link TablePlacer} up to date as
+ * photos come and go.
+ */
+public class TableScene {
+    public static final int NONE = -1;
+
+    private final TableIndex mIndex;
+    private final TablePlacer mPlacer;
+    private boolean[] mOccupied;
+    private int[] mWidth;
+    private int[] mHeight;
+    private float[] mX;
+    private float[] mY;
+    private float[] mRotation;
+    private float[] mScale;
+    private int[] mAbove;
+    private int[] mBelow;
+    private int[] mFree;
+    private int mFreeCount;
+    private int mBottom;
+    private int mTop;
+    private int mSize;
+
+    public TableScene(int capacity, TablePlacer placer) {
+        mIndex = new TableIndex(0);
+        mPlacer = placer;
+        mOccupied = new boolean[0];
+        mWidth = new int[0];
+        mHeight = new int[0];
+        mX = new float[0];
+        mY = new float[0];
+        mRotation = new float[0];
+        mScale = new float[0];
+        mAbove = new int[0];
+        mBelow = new int[0];
+        mFree = new int[0];
+        grow(Math.max(1, capacity));
+        mBottom = NONE;
+        mTop = NONE;
+    }
+
+    private void grow(int capacity) {
+        int old = mOccupied.length;
+        mOccupied = Arrays.copyOf(mOccupied, capacity);
+        mWidth = Arrays.copyOf(mWidth, capacity);
+        mHeight = Arrays.copyOf(mHeight, capacity);
+        mX = Arrays.copyOf(mX, capacity);
+        mY = Arrays.copyOf(mY, capacity);
+        mRotation = Arrays.copyOf(mRotation, capacity);
+        mScale = Arrays.copyOf(mScale, capacity);
+        mAbove = Arrays.copyOf(mAbove, capacity);
+        mBelow = Arrays.copyOf(mBelow, capacity);
+        mFree = Arrays.copyOf(mFree, capacity);
+        mIndex.ensureCapacity(capacity);
+        mPlacer.ensureCapacity(capacity);
+        // hand out low slots first.
+        for (int slot = capacity - 1; slot >= old; slot--) {
+            mFree[mFreeCount++] = slot;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mOccupied.length;
+    }
+
+    public TableIndex getIndex() {
+        return mIndex;
+    }
+
+    public TablePlacer getPlacer() {
+        return mPlacer;
+    }
+
+    /** Fit the index and coverage grids to a new table size. */
+    public void resize(int width, int height, float cellSize) {
+        mIndex.resize(width, height, cellSize);
+        mPlacer.resize(width, height);
+        for (int slot = mBottom; slot != NONE; slot = mAbove[slot]) {
+            updateFootprint(slot);
+        }
+    }
+
+    /** Put a photo on top of the pile and return its slot; give it a place with setTransform. */
+    public int add(int width, int height) {
+        if (mFreeCount == 0) {
+            grow(mOccupied.length * 2);
+        }
+        int slot = mFree[--mFreeCount];
+        mOccupied[slot] = true;
+        mWidth[slot] = width;
+        mHeight[slot] = height;
+        mRotation[slot] = 0f;
+        mScale[slot] = 1f;
+        mAbove[slot] = NONE;
+        mBelow[slot] = NONE;
+        linkOnTop(slot);
+        mSize++;
+        return slot;
+    }
+
+    public void remove(int slot) {
+        if (contains(slot)) {
+            unlink(slot);
+            mIndex.remove(slot);
+            mPlacer.remove(slot);
+            mOccupied[slot] = false;
+            mFree[mFreeCount++] = slot;
+            mSize--;
+        }
+    }
+
+    public boolean contains(int slot) {
+        return slot >= 0 && slot < mOccupied.length && mOccupied[slot];
+    }
+
+    /** Make this photo the last to be cleared away. */
+    public void moveToTop(int slot) {
+        if (slot != mTop) {
+            unlink(slot);
+            linkOnTop(slot);
+        }
+    }
+
+    private void linkOnTop(int slot) {
+        mBelow[slot] = mTop;
+        mAbove[slot] = NONE;
+        if (mTop != NONE) {
+            mAbove[mTop] = slot;
+        } else {
+            mBottom = slot;
+        }
+        mTop = slot;
+    }
+
+    private void unlink(int slot) {
+        int above = mAbove[slot];
+        int below = mBelow[slot];
+        if (above != NONE) {
+            mBelow[above] = below;
+        } else {
+            mTop = below;
+        }
+        if (below != NONE) {
+            mAbove[below] = above;
+        } else {
+            mBottom = above;
+        }
+        mAbove[slot] = NONE;
+        mBelow[slot] = NONE;
+    }
+
+    /** The stalest photo on the table, or NONE. */
+    public int getBottom() {
+        return mBottom;
+    }
+
+    /** The freshest photo on the table, or NONE. */
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getAbove(int slot) {
+        return mAbove[slot];
+    }
+
+    public int getBelow(int slot) {
+        return mBelow[slot];
+    }
+
+    /** Where the photo is, or is headed, by its top left corner. */
+    public void setPosition(int slot, float x, float y) {
+        mX[slot] = x;
+        mY[slot] = y;
+        mIndex.update(slot, x + mWidth[slot] / 2f, y + mHeight[slot] / 2f);
+        updateFootprint(slot);
+    }
+
+    public void setTransform(int slot, float x, float y, float rotation, float scale) {
+        mRotation[slot] = rotation;
+        mScale[slot] = scale;
+        setPosition(slot, x, y);
+    }
+
+    private void updateFootprint(int slot) {
+        mPlacer.place(slot, getCenterX(slot), getCenterY(slot),
+                mWidth[slot] * mScale[slot] / 2f, mHeight[slot] * mScale[slot] / 2f);
+    }
+
+    public float getX(int slot) {
+        return mX[slot];
+    }
+
+    public float getY(int slot) {
+        return mY[slot];
+    }
+
+    public float getCenterX(int slot) {
+        return mX[slot] + mWidth[slot] / 2f;
+    }
+
+    public float getCenterY(int slot) {
+        return mY[slot] + mHeight[slot] / 2f;
+    }
+
+    public float getRotation(int slot) {
+        return mRotation[slot];
+    }
+
+    public float getScale(int slot) {
+        return mScale[slot];
+    }
+
+    public int getWidth(int slot) {
+        return mWidth[slot];
+    }
+
+    public int getHeight(int slot) {
+        return mHeight[slot];
+    }
+
+    /** The nearest photo to this one within a cone around direction, or NONE. */
+    public int findNearest(int slot, float direction, float angle) {
+        return mIndex.findNearest(getCenterX(slot), getCenterY(slot), slot, direction, angle);
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * One view that draws every photo resting on the table.
+ *
+ * A photo that has come to rest leaves the view hierarchy, and the surface draws its
+ * picture with the matrix the photo's view had when it settled, in the order of the
+ * {@link TableScene} pile. Nothing is measured or laid out per photo. A touch that lands
+ * on a resting photo lifts it back into a live view, which then receives the rest of the
+ * gesture as if it had been touched directly.
+ *
+ * With caching on, the resting photos are flattened into one bitmap. A photo settling on
+ * top is simply drawn over it; any other change redraws only the area the photo covers.
+ */
+public class TableSurface extends View {
+    private static final String TAG = "TableSurface";
+
+    private PhotoTable mTable;
+    private TableScene mScene;
+    private Matrix[] mMatrix;
+    private ImageView[] mPhotos;
+    private Rect[] mPhotoBounds;
+    private final Matrix mInverse;
+    private final Matrix mLocal;
+    private final float[] mPoint;
+    private final RectF mBounds;
+    private final Rect mDirty;
+    private ImageView mTouchTarget;
+    private int mSettled;
+    private boolean mCaching;
+    private Bitmap mCache;
+    private Canvas mCacheCanvas;
+    private boolean mCacheValid;
+    private int mRebuilds;
+    private int mAppends;
+    private int mRepairs;
+
+    public TableSurface(Context context, AttributeSet as) {
+        super(context, as);
+        mMatrix = new Matrix[0];
+        mPhotos = new ImageView[0];
+        mPhotoBounds = new Rect[0];
+        mInverse = new Matrix();
+        mLocal = new Matrix();
+        mPoint = new float[2];
+        mBounds = new RectF();
+        mDirty = new Rect();
+    }
+
+    public void setTable(PhotoTable table, TableScene scene) {
+        mTable = table;
+        mScene = scene;
+    }
+
+    /** Keep the resting photos flattened in a bitmap, instead of drawing each every frame. */
+    public void setCaching(boolean caching) {
+        mCaching = caching;
+        if (!caching) {
+            releaseCache();
+        }
+        invalidate();
+    }
+
+    public int getSettledCount() {
+        return mSettled;
+    }
+
+    public boolean isSettled(int slot) {
+        return slot >= 0 && slot < mPhotos.length && mPhotos[slot] != null;
+    }
+
+    /** Take over drawing a photo that has come to rest; the caller detaches its view. */
+    public void settle(int slot, ImageView photo) {
+        if (slot >= mPhotos.length) {
+            int capacity = Math.max(slot + 1, mScene.getCapacity());
+            int old = mMatrix.length;
+            mMatrix = Arrays.copyOf(mMatrix, capacity);
+            mPhotos = Arrays.copyOf(mPhotos, capacity);
+            mPhotoBounds = Arrays.copyOf(mPhotoBounds, capacity);
+            for (int i = old; i < capacity; i++) {
+                mMatrix[i] = new Matrix();
+                mPhotoBounds[i] = new Rect();
+            }
+        }
+        if (mPhotos[slot] == null) {
+            mSettled++;
+        }
+        mPhotos[slot] = photo;
+        getViewMatrix(photo, mMatrix[slot]);
+        updateBounds(slot);
+        if (mCacheValid) {
+            if (isTopSettled(slot)) {
+                // nothing resting covers it, so just paint it on.
+                drawPhoto(mCacheCanvas, slot);
+                mAppends++;
+            } else {
+                repairCache(mPhotoBounds[slot]);
+            }
+        }
+        invalidate(mPhotoBounds[slot]);
+    }
+
+    /** Stop drawing a photo, because it is about to move, or leave. */
+    public void lift(int slot) {
+        if (isSettled(slot)) {
+            mPhotos[slot] = null;
+            mSettled--;
+            if (mCacheValid) {
+                repairCache(mPhotoBounds[slot]);
+            }
+            invalidate(mPhotoBounds[slot]);
+        }
+    }
+
+    private boolean isTopSettled(int slot) {
+        for (int above = mScene.getAbove(slot); above != TableScene.NONE;
+                above = mScene.getAbove(above)) {
+            if (isSettled(above)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The full transform from a photo's own coordinates into ours. */
+    private static void getViewMatrix(View photo, Matrix out) {
+        out.set(photo.getMatrix());
+        out.postTranslate(photo.getLeft(), photo.getTop());
+    }
+
+    private void updateBounds(int slot) {
+        Drawable picture = mPhotos[slot].getDrawable();
+        if (picture != null) {
+            mBounds.set(picture.getBounds());
+            mMatrix[slot].mapRect(mBounds);
+            mBounds.roundOut(mPhotoBounds[slot]);
+        } else {
+            mPhotoBounds[slot].setEmpty();
+        }
+    }
+
+    private void drawPhoto(Canvas canvas, int slot) {
+        Drawable picture = mPhotos[slot].getDrawable();
+        if (picture != null) {
+            int save = canvas.save();
+            canvas.concat(mMatrix[slot]);
+            picture.draw(canvas);
+            canvas.restoreToCount(save);
+        }
+    }
+
+    /** Draw the resting photos that touch the clip, bottom to top. */
+    private void drawPhotos(Canvas canvas, Rect clip) {
+        for (int slot = mScene.getBottom(); slot != TableScene.NONE;
+                slot = mScene.getAbove(slot)) {
+            if (isSettled(slot) && (clip == null || Rect.intersects(clip, mPhotoBounds[slot]))) {
+                drawPhoto(canvas, slot);
+            }
+        }
+    }
+
+    /** Redraw one area of the cache from scratch. */
+    private void repairCache(Rect area) {
+        mDirty.set(area);
+        int save = mCacheCanvas.save();
+        mCacheCanvas.clipRect(mDirty);
+        mCacheCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        drawPhotos(mCacheCanvas, mDirty);
+        mCacheCanvas.restoreToCount(save);
+        mRepairs++;
+    }
+
+    private void rebuildCache() {
+        int width = getWidth();
+        int height = getHeight();
+        if (mCache == null || mCache.getWidth() != width || mCache.getHeight() != height) {
+            releaseCache();
+            try {
+                mCache = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                // carry on drawing each photo instead.
+                Log.w(TAG, "no room for a " + width + "x" + height + " cache");
+                mCache = null;
+                mCaching = false;
+                return;
+            }
+            mCacheCanvas = new Canvas(mCache);
+        }
+        mCache.eraseColor(Color.TRANSPARENT);
+        drawPhotos(mCacheCanvas, null);
+        mCacheValid = true;
+        mRebuilds++;
+    }
+
+    private void releaseCache() {
+        if (mCache != null) {
+            mCache.recycle();
+            mCache = null;
+            mCacheCanvas = null;
+        }
+        mCacheValid = false;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mCacheValid = false;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseCache();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mScene == null || mSettled == 0) {
+            return;
+        }
+        if (mCaching && !mCacheValid && getWidth() > 0 && getHeight() > 0) {
+            rebuildCache();
+        }
+        if (mCacheValid) {
+            canvas.drawBitmap(mCache, 0f, 0f, null);
+        } else {
+            drawPhotos(canvas, null);
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "TableSurface: settled=" + mSettled +
+                " cache=" + (mCacheValid ? mCache.getWidth() + "x" + mCache.getHeight() :
+                        (mCaching ? "pending" : "off")) +
+                " rebuilds=" + mRebuilds + " appends=" + mAppends + " repairs=" + mRepairs);
+    }
+
+    /** The uppermost resting photo under a point, or NONE. */
+    public int findPhotoAt(float x, float y) {
+        if (mScene == null) {
+            return TableScene.NONE;
+        }
+        for (int slot = mScene.getTop(); slot != TableScene.NONE;
+                slot = mScene.getBelow(slot)) {
+            if (isSettled(slot) && mMatrix[slot].invert(mInverse)) {
+                Drawable picture = mPhotos[slot].getDrawable();
+                mPoint[0] = x;
+                mPoint[1] = y;
+                mInverse.mapPoints(mPoint);
+                if (picture != null &&
+                        picture.getBounds().contains((int) mPoint[0], (int) mPoint[1])) {
+                    return slot;
+                }
+            }
+        }
+        return TableScene.NONE;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            mTouchTarget = null;
+            int slot = findPhotoAt(event.getX(), event.getY());
+            if (slot == TableScene.NONE) {
+                // the bare table: let the table handle it.
+                return false;
+            }
+            mTouchTarget = mPhotos[slot];
+            mTable.liftFromSurface(mTouchTarget);
+        }
+        if (mTouchTarget == null) {
+            return false;
+        }
+        final ImageView target = mTouchTarget;
+        final int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mTouchTarget = null;
+        }
+        OnTouchListener listener = (OnTouchListener) target.getTag(R.id.photo_touch_listener);
+        if (listener == null) {
+            return true;
+        }
+        // deliver the event in the photo's coordinates, as the framework would have.
+        getViewMatrix(target, mLocal);
+        if (mLocal.invert(mInverse)) {
+            MotionEvent local = MotionEvent.obtain(event);
+            local.transform(mInverse);
+            listener.onTouch(target, local);
+            local.recycle();
+        }
+        return true;
+    }
+}
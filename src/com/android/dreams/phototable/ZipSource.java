@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.dreams.phototable;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Loads images straight out of ZIP archives, without extracting them.
+ *
+ * Each archive is mapped into memory and its central directory is read once into flat
+ * arrays, so opening a photo is a lookup by index. From API 28 stored entries are decoded in
+ * place from a slice of the mapping; before that, and for deflated entries, the slice is
+ * read as a stream, which BitmapFactory copies through its buffers. Each archive is an album.
+ */
+public class ZipSource extends PhotoSource {
+    private static final String TAG = "PhotoTable.ZipSource";
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_LENGTH = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_LENGTH = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int ENCRYPTED = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] IMAGE_EXTENSIONS =
+            { ".jpg", ".jpeg", ".png", ".webp", ".gif", ".bmp" };
+
+    /** The photo entries of one mapped archive, in central directory order. */
+    private static class Archive {
+        final String path;
+        final MappedByteBuffer map;
+        final int count;
+        final String[] names;
+        final int[] methods;
+        final int[] compressedSizes;
+        final int[] localOffsets;
+        // where each entry's data starts, found on first use; 0 until then.
+        final int[] dataOffsets;
+
+        Archive(String path, MappedByteBuffer map, int count) {
+            this.path = path;
+            this.map = map;
+            this.count = count;
+            names = new String[count];
+            methods = new int[count];
+            compressedSizes = new int[count];
+            localOffsets = new int[count];
+            dataOffsets = new int[count];
+        }
+    }
+
+    /**
+     * Reads a region of a buffer as a stream, copying into the reader's array. A raw
+     * inflater needs one byte past the end of the data, so it can be asked to supply a
+     * trailing zero.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+        private boolean mPad;
+
+        ByteBufferInputStream(ByteBuffer buffer, boolean pad) {
+            mBuffer = buffer;
+            mPad = pad;
+        }
+
+        @Override
+        public int read() {
+            if (!mBuffer.hasRemaining()) {
+                if (mPad) {
+                    mPad = false;
+                    return 0;
+                }
+                return -1;
+            }
+            return mBuffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                if (read() == -1) {
+                    return -1;
+                }
+                buffer[offset] = 0;
+                return 1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.min(count, mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int limit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+
+    private final String[] mPaths;
+    private final HashMap<String, Archive> mArchives;
+    private boolean mIndexed;
+
+    public ZipSource(Context context, SharedPreferences settings) {
+        super(context, settings);
+        mSourceName = TAG;
+        mPaths = mResources.getStringArray(R.array.photo_archives);
+        mArchives = new HashMap<String, Archive>();
+        fillQueue();
+    }
+
+    public static String constructId(String path) {
+        return TAG + ":" + path;
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void ensureIndexed() {
+        if (mIndexed) {
+            return;
+        }
+        mIndexed = true;
+        for (String path : mPaths) {
+            long start = System.currentTimeMillis();
+            Archive archive = index(path);
+            if (archive != null) {
+                mArchives.put(path, archive);
+                log(TAG, "indexed " + archive.count + " photos in " + path + " in " +
+                        (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+    }
+
+    /** Map an archive and read its central directory. */
+    private Archive index(String path) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                Log.w(TAG, path + " is too large to map");
+                return null;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            int end = findEnd(map);
+            if (end < 0) {
+                Log.w(TAG, path + " is not a zip archive");
+                return null;
+            }
+            int entries = map.getShort(end + 10) & 0xffff;
+            int offset = map.getInt(end + 16);
+
+            ArrayList<Integer> photos = new ArrayList<Integer>(entries);
+            int position = offset;
+            for (int i = 0; i < entries; i++) {
+                if (position < 0 || position + CENTRAL_LENGTH > map.limit() ||
+                        map.getInt(position) != CENTRAL_SIGNATURE) {
+                    Log.w(TAG, path + " has a corrupt central directory");
+                    return null;
+                }
+                int nameLength = map.getShort(position + 28) & 0xffff;
+                int extraLength = map.getShort(position + 30) & 0xffff;
+                int commentLength = map.getShort(position + 32) & 0xffff;
+                photos.add(position);
+                position += CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+            }
+
+            ArrayList<Integer> kept = new ArrayList<Integer>(photos.size());
+            ArrayList<String> names = new ArrayList<String>(photos.size());
+            for (int entry : photos) {
+                int flags = map.getShort(entry + 8) & 0xffff;
+                int method = map.getShort(entry + 10) & 0xffff;
+                String name = readName(map, entry + CENTRAL_LENGTH,
+                        map.getShort(entry + 28) & 0xffff);
+                if ((flags & ENCRYPTED) == 0 && (method == STORED || method == DEFLATED) &&
+                        !name.endsWith("/") && isImage(name)) {
+                    kept.add(entry);
+                    names.add(name);
+                }
+            }
+
+            Archive archive = new Archive(path, map, kept.size());
+            for (int i = 0; i < archive.count; i++) {
+                int entry = kept.get(i);
+                archive.names[i] = names.get(i);
+                archive.methods[i] = map.getShort(entry + 10) & 0xffff;
+                archive.compressedSizes[i] = map.getInt(entry + 20);
+                archive.localOffsets[i] = map.getInt(entry + 42);
+            }
+            return archive;
+        } catch (IOException ioe) {
+            Log.w(TAG, "can't index " + path + ": " + ioe);
+            reportError();
+            return null;
+        } catch (IndexOutOfBoundsException ioobe) {
+            Log.w(TAG, path + " has a corrupt central directory");
+            reportError();
+            return null;
+        } finally {
+            try {
+                if (file != null) {
+                    // the mapping stays valid after the file is closed.
+                    file.close();
+                }
+            } catch (IOException ioe) {
+                // nothing to do.
+            }
+        }
+    }
+
+    /** Find the end of central directory record, which may be followed by a comment. */
+    private static int findEnd(ByteBuffer map) {
+        int last = map.limit() - END_LENGTH;
+        int first = Math.max(0, last - MAX_COMMENT_LENGTH);
+        for (int position = last; position >= first; position--) {
+            if (map.getInt(position) == END_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static String readName(ByteBuffer map, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer name = map.duplicate();
+        name.position(offset);
+        name.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /** A view of one entry's data, found through its local header the first time. */
+    private ByteBuffer slice(Archive archive, int index) {
+        synchronized (archive) {
+            if (archive.dataOffsets[index] == 0) {
+                int local = archive.localOffsets[index];
+                if (archive.map.getInt(local) != LOCAL_SIGNATURE) {
+                    return null;
+                }
+                int nameLength = archive.map.getShort(local + 26) & 0xffff;
+                int extraLength = archive.map.getShort(local + 28) & 0xffff;
+                archive.dataOffsets[index] = local + LOCAL_LENGTH + nameLength + extraLength;
+            }
+        }
+        ByteBuffer data = archive.map.duplicate();
+        int start = archive.dataOffsets[index];
+        data.limit(start + archive.compressedSizes[index]);
+        data.position(start);
+        return data.slice();
+    }
+
+    @Override
+    public Collection<AlbumData> findAlbums() {
+        log(TAG, "finding albums");
+        ensureIndexed();
+        ArrayList<AlbumData> foundAlbums = new ArrayList<AlbumData>();
+        synchronized (this) {
+            for (Archive archive : mArchives.values()) {
+                if (archive.count > 0) {
+                    File file = new File(archive.path);
+                    AlbumData data = new AlbumData();
+                    data.id = constructId(archive.path);
+                    data.title = file.getName();
+                    data.account = file.getParent();
+                    data.updated = file.lastModified();
+                    foundAlbums.add(data);
+                }
+            }
+        }
+        log(TAG, "found " + foundAlbums.size() + " items.");
+        return foundAlbums;
+    }
+
+    @Override
+    protected Collection<ImageData> findImages(int howMany) {
+        log(TAG, "finding images");
+        ensureIndexed();
+        ArrayList<ImageData> foundImages = new ArrayList<ImageData>();
+        synchronized (this) {
+            for (Archive archive : mArchives.values()) {
+                if (mSettings.isAlbumEnabled(constructId(archive.path))) {
+                    for (int i = 0; i < archive.count; i++) {
+                        foundImages.add(newImageData(archive, i));
+                    }
+                }
+            }
+        }
+        mCatalogSize = foundImages.size();
+        Collections.shuffle(foundImages, mRNG);
+        if (foundImages.size() > howMany) {
+            foundImages.subList(howMany, foundImages.size()).clear();
+        }
+        log(TAG, "found " + foundImages.size() + " items.");
+        return foundImages;
+    }
+
+    private ImageData newImageData(Archive archive, int position) {
+        ImageData data = new ImageData();
+        data.albumId = archive.path;
+        data.position = position;
+        data.url = archive.names[position];
+        data.id = archive.path + "!" + data.url;
+        return data;
+    }
+
+    private synchronized Archive getArchive(ImageData data) {
+        return mArchives.get(data.albumId);
+    }
+
+    /** Stored entries can be decoded straight out of the mapping. */
+    @Override
+    protected ByteBuffer getBuffer(ImageData data) {
+        Archive archive = getArchive(data);
+        if (archive == null || data.position < 0 || data.position >= archive.count ||
+                archive.methods[data.position] != STORED) {
+            return null;
+        }
+        try {
+            return slice(archive, data.position);
+        } catch (IndexOutOfBoundsException ioobe) {
+            return null;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    @Override
+    protected InputStream getStream(ImageData data, int longSide) {
+        Archive archive = getArchive(data);
+        if (archive == null || data.position < 0 || data.position >= archive.count) {
+            return null;
+        }
+        log(TAG, "opening:" + data.id);
+        ByteBuffer entry = null;
+        try {
+            entry = slice(archive, data.position);
+        } catch (IndexOutOfBoundsException ioobe) {
+            entry = null;
+        } catch (IllegalArgumentException iae) {
+            entry = null;
+        }
+        if (entry == null) {
+            Log.w(TAG, "bad local header for " + data.id);
+            return null;
+        }
+        if (archive.methods[data.position] == STORED) {
+            return new ByteBufferInputStream(entry, false);
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new ByteBufferInputStream(entry, true), inflater) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    private ImageData step(ImageData current, int direction) {
+        Archive archive = getArchive(current);
+        if (archive == null || archive.count == 0) {
+            return null;
+        }
+        int position = (current.position + direction + archive.count) % archive.count;
+        return newImageData(archive, position);
+    }
+
+    @Override
+    protected ImageData naturalNext(ImageData current) {
+        return step(current, 1);
+    }
+
+    @Override
+    protected ImageData naturalPrevious(ImageData current) {
+        return step(current, -1);
+    }
+
+    @Override
+    protected void donePaging(ImageData current) {
+    }
+
+    @Override
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        for (Archive archive : mArchives.values()) {
+            int stored = 0;
+            for (int i = 0; i < archive.count; i++) {
+                if (archive.methods[i] == STORED) {
+                    stored++;
+                }
+            }
+            pw.println(prefix + archive.path + ": photos=" + archive.count +
+                    " stored=" + stored + " mapped=" + archive.map.capacity() + " bytes");
+        }
+    }
+}